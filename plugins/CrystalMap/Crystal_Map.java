@@ -2,19 +2,27 @@ import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.Menus;
+import ij.Prefs;
 import ij.WindowManager;
+import ij.gui.GenericDialog;
 import ij.gui.ImageCanvas;
+import ij.gui.ImageRoi;
 import ij.gui.ImageWindow;
+import ij.gui.Overlay;
+import ij.gui.Plot;
+import ij.gui.PointRoi;
 import ij.gui.Roi;
 import ij.io.OpenDialog;
 import ij.io.SaveDialog;
 import ij.measure.Calibration;
 import ij.plugin.PlugIn;
+import ij.process.ByteProcessor;
 import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 
 import java.awt.BorderLayout;
 import java.awt.Button;
+import java.awt.Checkbox;
 import java.awt.Color;
 import java.awt.Event;
 import java.awt.FlowLayout;
@@ -27,20 +35,27 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.FocusEvent;
 import java.awt.event.FocusListener;
+import java.awt.event.ItemEvent;
+import java.awt.event.ItemListener;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionListener;
+import java.awt.image.IndexColorModel;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Set;
-import java.util.Vector;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.swing.BoxLayout;
 import javax.swing.ButtonGroup;
@@ -54,6 +69,8 @@ import javax.swing.JSlider;
 import javax.swing.JToggleButton;
 import javax.swing.JToolBar;
 import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 
@@ -75,27 +92,32 @@ public class Crystal_Map implements PlugIn{
 	
 	//filter and peak finding parameters
 	FloatProcessor rawData;
-	FloatProcessor rawPlusBoundaries;
+	ImageRoi boundaryRoi;
 	ImageStack stack;
 	float highestPeak = 0.0f;
 	int width = 0, height = 0;
 	int xCrystals = 0, yCrystals = 0;
+	static final String[] MAPPING_METHODS = {"Row Scan", "Delaunay"};
+	static final String MAPPING_PREF = "crystalmap.mapping";
+	String mappingMethod = Prefs.get(MAPPING_PREF, MAPPING_METHODS[0]);
 	int peakSize = 13;
-	int[][] localPeakSize;
+	List<FilterPass> filterPasses = new ArrayList<FilterPass>();	//oldest first
 	int largestPeakSize = 0;
 	int threshold = 0;
 	int peakCutoff = 0;
+	String lastFilterEngine = "";
+	FilterCache filterCache;
+	long rawSource;			//of rawData in the filter cache
 	
 	//variables for handling peaks
-	Vector listPoints = new Vector(0, 16);
-	int numPoints = 0;
+	PeakStore peakStore = new PeakStore();
+	PeakDetector.Table peakTable;
 	final Color color = Color.yellow;
 	
 	//peak mapping, voronoi
 	PeakMapper mapper;
 	ImagePlus zoneImage;
 	double rowHeight[];
-	float[][] zones;
 	
 	//tools
 	int currentTool = 0;
@@ -108,6 +130,23 @@ public class Crystal_Map implements PlugIn{
 	final int ZOOM = 4;
 	final int CORRECT = 5;
 	JProgressBar progress;
+	volatile CrystalMapper.Step runningStep;
+	
+	//size of the filter result cache in MB, set with Filter_Cache_Settings
+	static final String CACHE_PREF = "crystalmap.filterCacheMB";
+	static final int CACHE_DEFAULT = 256;
+	
+	//live preview: delay after the last slider change, in ms, and largest preview image side
+	static final int PREVIEW_DELAY = 40;
+	static final int PREVIEW_SIZE = 384;
+	static final String PREVIEW = "preview";
+	//most peaks a Peak Cutoff change updates the regions for one at a time; past that they are rebuilt
+	static final int REGION_EDITS = 64;
+	static final String BOUNDARIES = "boundaries";
+	float[] previewImage;
+	long previewSource;		//of previewImage in the filter cache
+	Rectangle previewView;
+	int previewFactor;
 	
 	//class instances
 	PointHandler ph;
@@ -130,7 +169,6 @@ public class Crystal_Map implements PlugIn{
 		imp.updateAndDraw();
 		width = imp.getProcessor().getWidth();
 		height = imp.getProcessor().getHeight();
-		localPeakSize = new int[height][width];
 		
 		mapper = new PeakMapper();
 		
@@ -140,10 +178,11 @@ public class Crystal_Map implements PlugIn{
 		ph.setPointAction(pa);
 		
 		rawData = (FloatProcessor)imp.getProcessor();
+		rawSource = FilterCache.newSource();
 		stack = imp.createEmptyStack();
 		
 		highestPeak = (float)rawData.getMax();
-		rawPlusBoundaries = (FloatProcessor)rawData.duplicate();
+		filterCache = new FilterCache(cacheBudget());
 
 		//delegate the gui to the event-dispatching thread:
 		SwingUtilities.invokeLater(new Runnable() {
@@ -154,6 +193,69 @@ public class Crystal_Map implements PlugIn{
 	}
 	
 	
+	/**
+	 * @return the lowest peak value Find Peaks keeps: Peak Cutoff percent of the highest
+	 * filtered value, or of the highest raw value before the image is filtered
+	 */
+	float cutoff(){
+		return highestPeak * peakCutoff / 100;
+	}
+	
+	
+	/**
+	 * Progress reported by the running step from now on fills the bar from percent
+	 * from to percent to
+	 */
+	void phase(int from, int to){
+		CrystalMapper.Step step = runningStep;
+		if(step != null)
+			step.phase(from, to);
+	}
+	
+	
+	/**
+	 * @return filter cache budget in bytes, from the CACHE_PREF preference
+	 */
+	static long cacheBudget(){
+		return (long)Prefs.get(CACHE_PREF, CACHE_DEFAULT) << 20;
+	}
+	
+	
+	/**
+	 * Replace the overlay element called name by roi, or just remove it if roi is null.
+	 * Other elements of the overlay are left alone.
+	 */
+	void showOverlay(String name, Roi roi){
+		Overlay overlay = imp.getOverlay();
+		if(overlay == null)
+			overlay = new Overlay();
+		for(int i = overlay.size() - 1; i >= 0; i--){
+			if(name.equals(overlay.get(i).getName()))
+				overlay.remove(i);
+		}
+		if(roi != null){
+			roi.setName(name);
+			overlay.add(roi);
+		}
+		imp.setOverlay(overlay.size() == 0 ? null : overlay);
+	}
+	
+	
+	/**
+	 * Show the pixels of the regions changed by a peak edit (see PeakMapper.peakAdded)
+	 * in the region image and the boundaries
+	 */
+	void showRegionEdit(Rectangle changed){
+		if(changed == null || changed.isEmpty())
+			return;
+		//the region image shows mapper.zones itself
+		if(zoneImage != null)
+			zoneImage.updateAndDraw();
+		if(boundaryRoi != null)
+			imp.draw();
+	}
+	
+	
 	class CrystalCanvas extends ImageCanvas {
 		
 		public CrystalCanvas(ImagePlus imp) {
@@ -179,10 +281,11 @@ public class Crystal_Map implements PlugIn{
 	
 	class CrystalMapper extends ImageWindow implements 	ActionListener, 
 														ChangeListener, 
+														ItemListener,
 														MouseMotionListener	{
 		
 		private PointHandler ph;
-		private int steps = 5, peakButtons = 7, modes = 2, sliders = 3;
+		private int steps = 5, peakButtons = 8, modes = 2, sliders = 3;
 		private Button[] stepButton = new Button[steps];
 		private Button[] peakButton = new Button[peakButtons];
 		private JToggleButton[] toolButton = new JToggleButton[tools];
@@ -190,13 +293,18 @@ public class Crystal_Map implements PlugIn{
 		private Icon[] toolIcon = new Icon[tools];
 		private JSlider[] slider = new JSlider[sliders];
 		private String[] stepButtonName = {"1. Filter", "2. Find Peaks", "3. Map Peaks", "4. Define Regions", "5. Save for Kmax"};
-		private String[] peakButtonName = {"Remove All", "Count All", "Show Crystal #", "Show Boundaries", "View Peaks", "Open Peaks", "Save Peaks"};
+		private String[] peakButtonName = {"Remove All", "Count All", "Show Crystal #", "Show Boundaries", "View Peaks", "Open Peaks", "Save Peaks", "Cutoff Histogram"};
 		private String[] modeName = {"Filter Mode", "Peak Mode"};
 		private String[] toolName = {"Add Peak", "Add Local Peak", "Move Peak", "Remove Peak", "Zoom", "Correct"};
 		private String[] sliderName = {"Peak Size", "Threshold", "Peak Cutoff"};
 		private int[] defaultSliderValue = {peakSize, threshold, peakCutoff};
 		private JLabel toolLabel = new JLabel("");
 		private JToolBar toolBar;
+		private Button cancelButton;
+		private boolean[] stepEnabled = {true, true, true, true, true};
+		private Checkbox previewBox;
+		private Timer previewTimer;
+		private Preview previewTask;
 		
 		public CrystalMapper(ImagePlus imp, ImageCanvas ic, PointHandler ph) {
 			super(imp, ic);
@@ -229,8 +337,9 @@ public class Crystal_Map implements PlugIn{
 				stepButton[i].addActionListener(this);
 				panel.add(stepButton[i]);
 			}
-			stepButton[3].setEnabled(false);
-			stepButton[4].setEnabled(false);
+			stepEnabled[3] = false;
+			stepEnabled[4] = false;
+			setButtonsEnabled(true);
 
 			//middle of panel - toolbar + single tool buttons wrapped in another panel
 			JPanel peakPanel = new JPanel();
@@ -270,9 +379,22 @@ public class Crystal_Map implements PlugIn{
 				panel.add(slider[i]);
 				slider[i].addChangeListener(this);
 			}
-			progress = new JProgressBar();
+			previewBox = new Checkbox("Live Preview", false);
+			previewBox.addItemListener(this);
+			panel.add(previewBox);
+			previewTimer = new Timer(PREVIEW_DELAY, new ActionListener(){
+				public void actionPerformed(ActionEvent e){
+					startPreview();
+				}
+			});
+			previewTimer.setRepeats(false);
+			progress = new JProgressBar(0, 100);
 			panel.add(new JLabel(""));
 			panel.add(progress);
+			cancelButton = new Button("Cancel");
+			cancelButton.addActionListener(this);
+			cancelButton.setEnabled(false);
+			panel.add(cancelButton);
 			
 			//pack parent panel
 			add(getCanvas(), BorderLayout.CENTER);
@@ -291,47 +413,88 @@ public class Crystal_Map implements PlugIn{
 				String name = ((Button)b).getLabel();
 				
 				if(name.equals("1. Filter")){
-					imp.setProcessor(null, filter(imp.getProcessor()));
-					((FloatProcessor)imp.getProcessor()).resetMinAndMax();
-					imp.updateAndDraw();
+					final ImageProcessor current = imp.getProcessor();
+					new Step("Filter"){
+						Object compute(){
+							return filter(current);
+						}
+						void publish(Object result){
+							imp.setProcessor(null, (FloatProcessor)result);
+							((FloatProcessor)imp.getProcessor()).resetMinAndMax();
+							imp.updateAndDraw();
+						}
+					}.start();
 				}
 				if(name.equals("2. Find Peaks")){
-					locatePeaks((FloatProcessor)imp.getProcessor(), ph);
-					modeGroup.setSelected(peakModel, true);
-					imp.setRoi(ph);
+					final FloatProcessor current = (FloatProcessor)imp.getProcessor();
+					new Step("Find Peaks"){
+						Object compute(){
+							return locatePeaks(current);
+						}
+						void publish(Object result){
+							peakTable = (PeakDetector.Table)result;
+							ph.addTable(peakTable, cutoff());
+							modeGroup.setSelected(peakModel, true);
+							imp.setRoi(ph);
+						}
+					}.start();
 				}
 				if(name.equals("3. Map Peaks")){
 					//get xCrystals and yCrystals
-					double errorValue = 0;
-					double value = IJ.getNumber("How many columns?", errorValue);
-					if(value == IJ.CANCELED || value == errorValue)
+					GenericDialog gd = new GenericDialog("Map Peaks");
+					gd.addNumericField("Columns:", xCrystals, 0);
+					gd.addNumericField("Rows:", yCrystals, 0);
+					gd.addChoice("Mapping:", MAPPING_METHODS, mappingMethod);
+					gd.showDialog();
+					if(gd.wasCanceled())
 						return;
-					xCrystals = (int)Math.round(value);
-					value = IJ.getNumber("How many rows?", errorValue);
-					if(value == IJ.CANCELED || value == errorValue)
+					int columns = (int)Math.round(gd.getNextNumber());
+					int rows = (int)Math.round(gd.getNextNumber());
+					if(columns <= 0 || rows <= 0)
 						return;
-					yCrystals = (int)Math.round(value);
+					xCrystals = columns;
+					yCrystals = rows;
+					mappingMethod = gd.getNextChoice();
+					Prefs.set(MAPPING_PREF, mappingMethod);
 					rowHeight = new double[yCrystals + 1];
-					//enumerate all peaks
-					mapper.mapPeaks(null,0);
-					displayRegions = true;
-					peakButton[2].setLabel("Hide Crystal #");
-					imp.setRoi(ph);
-					stepButton[3].setEnabled(true);
+					new Step("Map Peaks"){
+						Object compute(){
+							//enumerate all peaks
+							Stage stage = new Stage("Map Peaks");
+							try{
+								mapper.mapPeaks(-1,0);
+							}finally{
+								stage.end(peakStore.size(), "peaks");
+							}
+							return null;
+						}
+						void publish(Object result){
+							displayRegions = true;
+							peakButton[2].setLabel("Hide Crystal #");
+							imp.setRoi(ph);
+							stepEnabled[3] = true;
+						}
+					}.start();
 				}
 				if(name.equals("4. Define Regions")){
 					
 					modeGroup.setSelected(filterModel, true);
-					FloatProcessor zoneProcessor = mapper.defineRegions();
-					zoneImage = new ImagePlus("Mapped Regions", zoneProcessor);
-					zoneImage.show();
-					zoneImage.draw();
-					displayRegions = false;
-					imp.setProcessor("Boundaries", rawPlusBoundaries);
-					imp.updateAndDraw();
-					peakButton[2].setLabel("Show Crystal #");
-					peakButton[3].setLabel("Hide Boundaries");
-					stepButton[4].setEnabled(true);
+					new Step("Define Regions"){
+						Object compute(){
+							return mapper.defineRegions();
+						}
+						void publish(Object result){
+							zoneImage = new ImagePlus("Mapped Regions", (FloatProcessor)result);
+							zoneImage.show();
+							zoneImage.draw();
+							displayRegions = false;
+							boundaryRoi = new ImageRoi(0, 0, mapper.getBoundaries());
+							showOverlay(BOUNDARIES, boundaryRoi);
+							peakButton[2].setLabel("Show Crystal #");
+							peakButton[3].setLabel("Hide Boundaries");
+							stepEnabled[4] = true;
+						}
+					}.start();
 					//	ImageStack stack = imp.getStack();
 					//	stack.addSlice("Crystal Map", zones);
 					//	imp.setSlice(1);
@@ -345,11 +508,15 @@ public class Crystal_Map implements PlugIn{
 					WindowManager.setCurrentWindow(zoneImage.getWindow());
 					IJ.runPlugIn("Save_Kmax", "");
 				}
+				if(name.equals("Cancel")){
+					if(runningStep != null)
+						runningStep.cancel();
+				}
 				if(name.equals("Remove All")){
 					ph.removePoints();
 				}
 				if(name.equals("Count All")){
-					IJ.showMessage(Integer.toString(listPoints.size()) + " total peaks.");
+					IJ.showMessage(Integer.toString(peakStore.size()) + " total peaks.");
 				}
 				if(name.equals("Show Crystal #")){
 					((Button)b).setLabel("Hide Crystal #");
@@ -364,17 +531,18 @@ public class Crystal_Map implements PlugIn{
 				if(name.equals("Show Boundaries")){
 					((Button)b).setLabel("Hide Boundaries");
 				//	displayBoundaries = true;
-					imp.setProcessor("Boundaries", rawPlusBoundaries);
-					imp.updateAndDraw();
+					showOverlay(BOUNDARIES, boundaryRoi);
 					imp.setRoi(ph);
 				}
 				if(name.equals("Hide Boundaries")){
 					((Button)b).setLabel("Show Boundaries");
 				//	displayBoundaries = false;
-					imp.setProcessor("Raw image", rawData);
-					imp.updateAndDraw();
+					showOverlay(BOUNDARIES, null);
 					imp.setRoi(ph);
 				}
+				if(name.equals("Cutoff Histogram")){
+					cutoffHistogram();
+				}
 				if(name.equals("View Peaks")){
 					viewPeaks();
 				}
@@ -414,6 +582,109 @@ public class Crystal_Map implements PlugIn{
 		public void mouseDragged(MouseEvent e){
 		}
 		
+		/**
+		 * Enable the step and peak buttons, or disable them all while a step is running;
+		 * stepEnabled remembers which steps are available once it has finished
+		 */
+		void setButtonsEnabled(boolean enabled){
+			for(int i = 0; i < steps; i++)
+				stepButton[i].setEnabled(enabled && stepEnabled[i]);
+			for(int i = 0; i < peakButtons; i++)
+				peakButton[i].setEnabled(enabled);
+			for(int i = 0; i < modes; i++)
+				modeButton[i].setEnabled(enabled);
+			if(cancelButton != null)
+				cancelButton.setEnabled(!enabled);
+		}
+		
+		
+		/**
+		 * A calibration step run off the event dispatch thread.  compute() runs in the
+		 * background, reporting to the progress bar through Parallel.checkpoint, and stops
+		 * with a CancellationException when Cancel is pressed.  publish() then runs on
+		 * the event dispatch thread and is the only part of the step that touches the
+		 * ImagePlus, so the image changes all at once or not at all.  While a step runs
+		 * the peaks are not edited from the event dispatch thread (see PointAction.isEditable),
+		 * as the step may be reading or numbering them.
+		 */
+		abstract class Step extends SwingWorker<Object, Object> implements Parallel.Monitor{
+			
+			private final String name;
+			private volatile boolean canceled = false;
+			private volatile int base = 0, span = 100;
+			
+			Step(String name){
+				this.name = name;
+			}
+			
+			abstract Object compute();
+			
+			void publish(Object result){
+			}
+			
+			void start(){
+				runningStep = this;
+				if(previewTask != null)
+					previewTask.stale = true;
+				setButtonsEnabled(false);
+				progress.setValue(0);
+				addPropertyChangeListener(new PropertyChangeListener(){
+					public void propertyChange(PropertyChangeEvent e){
+						if("progress".equals(e.getPropertyName()))
+							progress.setValue(((Integer)e.getNewValue()).intValue());
+					}
+				});
+				execute();
+			}
+			
+			void cancel(){
+				canceled = true;
+			}
+			
+			/**
+			 * following progress fills the bar from percent from to percent to
+			 */
+			void phase(int from, int to){
+				base = from;
+				span = to - from;
+			}
+			
+			public boolean isCanceled(){
+				return canceled;
+			}
+			
+			public void progress(long done, long total){
+				setProgress((int)Math.min(100, base + span * done / Math.max(1, total)));
+			}
+			
+			protected Object doInBackground(){
+				Parallel.setMonitor(this);
+				try{
+					return compute();
+				}finally{
+					Parallel.setMonitor(null);
+				}
+			}
+			
+			protected void done(){
+				runningStep = null;
+				progress.setValue(0);
+				try{
+					publish(get());
+				}catch(InterruptedException e){
+					IJ.showStatus(name + " interrupted.");
+				}catch(ExecutionException e){
+					if(e.getCause() instanceof CancellationException)
+						IJ.showStatus(name + " canceled.");
+					else
+						IJ.handleException(e.getCause());
+				}
+				setButtonsEnabled(true);
+				if(previewBox.getState())
+					previewTimer.restart();
+			}
+		}
+		
 		/**
 		 * called when a slider is changed; updates variables to reflect current slider positions
 		 */
@@ -421,100 +692,288 @@ public class Crystal_Map implements PlugIn{
 			peakSize = slider[0].getValue();
 			threshold = slider[1].getValue();
 			peakCutoff = slider[2].getValue();
+			if(runningStep == null && ph.setCutoff(cutoff(), slider[2].getValueIsAdjusting()) && imp.getRoi() == ph)
+				imp.setRoi(ph);
+			if(previewBox.getState())
+				previewTimer.restart();
 		}
 		
 		/**
-		 * filter entire image with a sine convolutative filter
-		 * @param roi
-		 * @return
+		 * called when Live Preview is switched on or off
 		 */
-		public FloatProcessor filter(ImageProcessor currentProcessor) {
-			int x, y, i, j;
-			float temp = 0.0f;
-			double d;
-			int l;
-			double normal, sum;
-			FloatProcessor tempData = new FloatProcessor(width, height);
-		//	FloatProcessor tempData = (FloatProcessor)currentProcessor;
-		//	float[] pixels = (float[])tempData.getPixels();
-			IJ.showStatus("Filtering . . .");
-			Rectangle bounds = imp.getRoi().getBounds();
-			
-			//Find radius of filter
-			l = (peakSize - 1) / 2;
+		public void itemStateChanged(ItemEvent e){
+			if(previewBox.getState())
+				previewTimer.restart();
+			else{
+				previewTimer.stop();
+				showOverlay(PREVIEW, null);
+			}
+		}
+		
+		/**
+		 * Start a preview of the current slider settings, unless one is still running; in
+		 * that case a new one starts when it is done.  Full steps take priority.
+		 */
+		void startPreview(){
+			if(!previewBox.getState() || runningStep != null)
+				return;
+			if(previewTask != null){
+				previewTask.stale = true;
+				return;
+			}
+			Rectangle view = imp.getCanvas().getSrcRect().intersection(new Rectangle(0, 0, width, height));
+			Roi roi = imp.getRoi();
+			if(roi != null && roi != ph)
+				view = view.intersection(roi.getBounds());
+			if(view.isEmpty())
+				return;
+			previewTask = new Preview(view, peakSize, threshold, cutoff());
+			previewTask.execute();
+		}
+		
+		
+		/**
+		 * Filter and peak search of the visible part of the image with the current slider
+		 * settings, shown as an overlay.  Views larger than PREVIEW_SIZE^2 pixels are
+		 * block averaged first, with the peak size scaled down to match.  The full
+		 * resolution result is still only made by the Filter and Find Peaks steps.
+		 */
+		class Preview extends SwingWorker<int[], Object>{
 			
-			double[][] sinxFilter = new double[l * 2 + 1][l * 2 + 1];
+			final Rectangle view;
+			final int size, threshold;
+			final float cutoff;
+			volatile boolean stale = false;
 			
-			normal = (threshold / 100.0);
-			highestPeak = 0;
-			sum = 0;
+			Preview(Rectangle view, int size, int threshold, float cutoff){
+				this.view = view;
+				this.size = size;
+				this.threshold = threshold;
+				this.cutoff = cutoff;
+			}
 			
-			//Build filter based on rotation of the function sin(x)/x	
+			protected int[] doInBackground(){
+				int factor = (int)Math.ceil(Math.sqrt((double)view.width * view.height / (PREVIEW_SIZE * PREVIEW_SIZE)));
+				factor = Math.max(factor, 1);
+				int w = view.width / factor;
+				int h = view.height / factor;
+				int ps = Math.max(1, size / factor);
+				int l = (ps - 1) / 2;
+				int r = ps / 2;
+				if(w <= 2*Math.max(l, r) || h <= 2*Math.max(l, r))
+					return new int[0];
+				
+				//keep the same preview image while the view does not change, so the filter cache can be used
+				float[] small = previewImage;
+				if(small == null || !view.equals(previewView) || factor != previewFactor){
+					small = downsample((float[])rawData.getPixels(), view, factor, w, h);
+					previewImage = small;
+					previewSource = FilterCache.newSource();
+					previewView = view;
+					previewFactor = factor;
+				}
+				if(stale)
+					return null;
+				
+				Rectangle all = new Rectangle(0, 0, w, h);
+				Rectangle area = FilterEngine.filterArea(all, l, w, h);
+				double[][] sinxFilter = FilterEngine.sincKernel(ps);
+				double normal = FilterEngine.normal(sinxFilter, threshold);
+				FilterCache.Key key = new FilterCache.Key(previewSource, w, h, all, ps);
+				float[][] terms = filterCache.get(key);
+				if(terms == null){
+					float[] correlation = new float[w * h];
+					FilterEngine.create(sinxFilter, area).convolve(small, w, h, area, correlation);
+					float[] sinc = new float[area.width * area.height];
+					for(int y = area.y; y < area.y + area.height; y++)
+						System.arraycopy(correlation, y*w + area.x, sinc, (y - area.y)*area.width, area.width);
+					float[] box = new float[area.width * area.height];
+					FilterEngine.boxSum(small, w, l, area, box);
+					terms = new float[][]{sinc, box};
+					filterCache.put(key, terms);
+				}
+				if(stale)
+					return null;
+				
+				float[] filtered = new float[w * h];
+				for(int y = area.y; y < area.y + area.height; y++){
+					int k = (y - area.y)*area.width;
+					for(int x = area.x; x < area.x + area.width; x++, k++)
+						filtered[y*w + x] = (float)Math.max(0.0, terms[0][k] - normal * terms[1][k]);
+				}
+				Rectangle search = new Rectangle(r, r, w - 2*r, h - 2*r).intersection(area);
+				int[] found = PeakDetector.localMaxima(filtered, w, search, r, cutoff);
+				for(int k = 0; k < found.length; k += 2){
+					found[k] = view.x + found[k]*factor + factor/2;
+					found[k + 1] = view.y + found[k + 1]*factor + factor/2;
+				}
+				return found;
+			}
 			
-			for (i = -l; i <= l; i++) {
-				for (j = -l; j <= l; j++) {
-					d = Math.sqrt(i*i + j*j);		
-					if (d == 0) {
-						sinxFilter[i + l][j + l] = 1;
-						sum +=  1;
-					}
-					else {
-						sinxFilter[i + l][j + l] = (Math.sin(Math.PI * d / l) / (Math.PI * d / l));
-						sum += sinxFilter[i + l][j + l];
+			protected void done(){
+				previewTask = null;
+				try{
+					int[] found = get();
+					if(found != null && !stale && previewBox.getState())
+						showPreview(found);
+				}catch(InterruptedException e){
+				}catch(ExecutionException e){
+					if(!(e.getCause() instanceof CancellationException))	//a step was canceled while this ran
+						IJ.handleException(e.getCause());
+				}
+				if(stale)
+					previewTimer.restart();
+			}
+		}
+		
+		/**
+		 * block average of view into a w*h image
+		 */
+		private float[] downsample(float[] pixels, Rectangle view, int factor, int w, int h){
+			if(factor == 1){
+				float[] small = new float[w * h];
+				for(int y = 0; y < h; y++)
+					System.arraycopy(pixels, (view.y + y)*width + view.x, small, y*w, w);
+				return small;
+			}
+			float[] small = new float[w * h];
+			float scale = 1.0f / (factor * factor);
+			for(int y = 0; y < h; y++){
+				for(int x = 0; x < w; x++){
+					float sum = 0;
+					for(int j = 0; j < factor; j++){
+						int offset = (view.y + y*factor + j)*width + view.x + x*factor;
+						for(int i = 0; i < factor; i++)
+							sum += pixels[offset + i];
 					}
+					small[y*w + x] = sum * scale;
 				}
 			}
+			return small;
+		}
+		
+		private void showPreview(int[] found){
+			int n = found.length / 2;
+			int[] xs = new int[n];
+			int[] ys = new int[n];
+			for(int k = 0; k < n; k++){
+				xs[k] = found[2*k];
+				ys[k] = found[2*k + 1];
+			}
+			PointRoi points = new PointRoi(xs, ys, n);
+			points.setStrokeColor(Color.cyan);
+			showOverlay(PREVIEW, points);
+			IJ.showStatus("Preview: " + n + " peaks");
+		}
+		
+		/**
+		 * filter entire image with a sine convolutative filter; the convolution itself is
+		 * done by whichever FilterEngine backend is cheapest for this peak size and roi
+		 * @param roi
+		 * @return
+		 */
+		public FloatProcessor filter(final ImageProcessor currentProcessor) {
+			Stage stage = new Stage("Filter");
+			long pixels = 0;
+			try{
+				filterCache.setBudget(cacheBudget());	//may have been changed with Filter_Cache_Settings
+				int l;
+				FloatProcessor tempData = new FloatProcessor(width, height);
+				final float[] filtered = (float[])tempData.getPixels();
+				IJ.showStatus("Filtering . . .");
+				Roi roi = imp.getRoi();
+				Rectangle bounds = (roi == null) ? new Rectangle(0, 0, width, height) : roi.getBounds();
 			
-			//Normalize so that flat fields will produce slightly less than zero
-			sum = sum / ((l * 2 + 1) * (l * 2 + 1));
-			normal = sum * (normal + 1);		//Drop curve a further x% lower
+				//Find radius of filter
+				l = (peakSize - 1) / 2;
 			
-			for (i = -l; i <= l; i++) {
-				for (j = -l; j <= l; j++) {
-					sinxFilter[i + l][j + l] -= normal;
+				double[][] sinxFilter = FilterEngine.sincKernel(peakSize);
+				final double normal = FilterEngine.normal(sinxFilter, threshold);
+			
+				//copy pixel values outside filter area (should be easier to overwrite current image only in area of filter, but 
+				//calling putPixelValue on the current image results in NaN values - why?
+				//each band of rows only writes its own rows of tempData
+				phase(0, 10);
+				Parallel.forRange(0, height, 16, new Parallel.Range(){
+					public void run(int from, int to){
+						for(int y = from; y < to; y++){
+							for(int x = 0; x < width; x++){
+								filtered[y*width + x] = currentProcessor.getPixelValue(x, y);
+							}
+						}
+					}
+				});
+				if(peakSize > largestPeakSize)
+					largestPeakSize = peakSize;
+			
+				//The filter is the sin(x)/x correlation minus normal times the box sum; both terms only
+				//depend on the peak size, so they are computed once per roi and peak size
+				final Rectangle area = FilterEngine.filterArea(bounds, l, width, height);
+				FilterCache.Key key = new FilterCache.Key(rawSource, width, height, bounds, peakSize);
+				float[][] cached = filterCache.get(key);
+				if(cached == null){
+					float[] raw = (float[])rawData.getPixels();
+					float[] sinc = new float[area.width * area.height];
+					float[] box = new float[area.width * area.height];
+					FilterEngine engine = FilterEngine.create(sinxFilter, area);
+					float[] correlation = new float[width * height];
+					phase(10, 80);
+					engine.convolve(raw, width, height, area, correlation);
+					for(int y = area.y; y < area.y + area.height; y++)
+						System.arraycopy(correlation, y*width + area.x, sinc, (y - area.y)*area.width, area.width);
+					phase(80, 90);
+					FilterEngine.boxSum(raw, width, l, area, box);
+					cached = new float[][]{sinc, box};
+					filterCache.put(key, cached);
+					lastFilterEngine = engine.describe() + ", " + Parallel.threads() + " threads";
 				}
-			}
+				else
+					lastFilterEngine = "cached";
 			
-			//copy pixel values outside filter area (should be easier to overwrite current image only in area of filter, but 
-			//calling putPixelValue on the current image results in NaN values - why?
-			for(x = 0; x < width; x++){
-				for(y = 0; y < height; y++){
-					tempData.putPixelValue(x, y, currentProcessor.getPixelValue(x, y));
+				//Apply the threshold to the selected area
+				final float[] sinc = cached[0];
+				final float[] box = cached[1];
+				final int size = peakSize;
+				phase(90, 100);
+				Parallel.forRange(area.y, area.y + area.height, 16, new Parallel.Range(){
+					public void run(int from, int to){
+						for (int y = from; y < to; y++) {
+							int k = (y - area.y)*area.width;
+							for (int x = area.x; x < area.x + area.width; x++, k++) {
+								float temp = (float)(sinc[k] - normal * box[k]);
+								if (temp < 0.0){
+									temp = 0.0f;
+								}
+								filtered[y*width + x] = temp;
+							}
+						}
+					}
+				});
+				//a pass hidden by this one no longer decides any peak size
+				for(int i = filterPasses.size() - 1; i >= 0; i--){
+					if(area.contains(filterPasses.get(i).area))
+						filterPasses.remove(i);
 				}
-			}
-			if(peakSize > largestPeakSize)
-				largestPeakSize = peakSize;
+				filterPasses.add(new FilterPass(area, size));
 			
-			//Pass filter over selected area
-		//	double progress = 0.0;
-		//	progress.setMaximum(cursors[1]-1);
-		//	IJ.showProgress(0.0);
-			for (x = bounds.x + l; x <= bounds.x + bounds.width - l; x++) {
-				
-			//	if(x%100 == 0){
-				//	System.out.println(x);
-				//	IJ.showProgress((double)x / (double)cursors[1]);
-			//	progress.setValue(x);
-				//}
-					
-				
-				for (y = bounds.y + l; y <= bounds.y + bounds.height - l; y++) {
-				//	currentProcessor.putPixelValue(x, y, 0.0);
-					localPeakSize[y][x] = peakSize;
-					temp = 0.0f;
-					for (i = 0; i < 2*l+1; i++)
-						for (j = 0; j < 2*l+1; j++){
-							temp += rawData.getPixelValue(x + i - l, y + j - l) * sinxFilter[i][j];
+				//the Peak Cutoff is a percentage of the highest value left in any filtered area
+				float highest = 0.0f;
+				for(FilterPass pass : filterPasses){
+					Rectangle r = pass.area;
+					for(int y = r.y; y < r.y + r.height; y++){
+						for(int x = r.x; x < r.x + r.width; x++){
+							if(filtered[y*width + x] > highest)
+								highest = filtered[y*width + x];
 						}
-					if (temp < 0.0){
-						temp = 0.0f;
 					}
-					tempData.putPixelValue(x, y, temp);
 				}
+				highestPeak = highest;
+				IJ.showStatus("Filtering done (" + lastFilterEngine + "; cache " + filterCache + "). Ready to find peaks.");
+				pixels = (long)area.width * area.height;
+				return tempData;
+			}finally{
+				stage.end(pixels, "pixels");
 			}
-	//		IJ.showProgress(1.0);
-			IJ.showStatus("Filtering done. Ready to find peaks.");
-			return tempData;
 		}
 		
 		
@@ -524,65 +983,109 @@ public class Crystal_Map implements PlugIn{
 		 * @param data
 		 * @param cutoff
 		 * @param radius
-		 * @return
+		 * @return every local maximum found, sorted by value so any cutoff can be applied
 		 */
-		public void locatePeaks(FloatProcessor ip, PointHandler ph){
+		public PeakDetector.Table locatePeaks(FloatProcessor ip){
 			
-			int x, y, tempX, tempY, status = 0, peaks = 0;
-			float center, compare;
-			int size = 5;
-			int r2;// = size*size;
-			int yMax = 0;
-			int[] cursors = new int[4];
-	//		Rectangle bounds = ip.getRoi();
+			Stage stage = new Stage("Locate Peaks");
+			long pixelCount = 0;
+			try{
+				float[] pixels = (float[])ip.getPixels();
+				int x0 = largestPeakSize, x1 = width - largestPeakSize;
+				int y0 = largestPeakSize, y1 = height - largestPeakSize;
 			
-
-			//search roi for peaks
-			for(x = largestPeakSize; x < width - largestPeakSize; x++){
-				for(y = largestPeakSize; y < height - largestPeakSize; y++){
-					size = localPeakSize[y][x] / 2;
-					if(size != 0){	//only search for peaks in areas that have been filtered
-						status = 0;
-						center = ip.getPixelValue(x,y);
-						r2 = size*size;
-						for (tempX = x - size; tempX <= x + size; tempX++){
-							yMax = (int)(Math.sqrt(r2 - (x-tempX)*(x-tempX)) + 0.5);
-							for (tempY = y - yMax; tempY <= y + yMax; tempY++){
-								compare = ip.getPixelValue(tempX, tempY);
-								if ((center <= compare) && !((tempX == x) && (tempY == y)))
-									status += 1;
-							}
-						}
-						//If a local maxima is found and is higher than the cutoff value (i.e. not noise), then add it to the peaks list
-						if ((status < 1) && (center >= highestPeak * peakCutoff))
-						{
-							ph.addPoint(x,y);
-							peaks++;
+				//only filtered pixels are searched, each with the peak size of the last pass over it
+				Rectangle bounds = new Rectangle(x0, y0, x1 - x0, y1 - y0);
+			
+				//The cutoff value (i.e. not noise) is applied to the table afterwards
+				long[] found = new long[64];
+				int peaks = 0;
+				for(int i = 0; i < filterPasses.size(); i++){
+					Parallel.checkpoint(i, filterPasses.size());
+					FilterPass pass = filterPasses.get(i);
+					Rectangle area = pass.area.intersection(bounds);
+					if(pass.size / 2 == 0 || area.isEmpty())
+						continue;
+					List<Rectangle> parts = new ArrayList<Rectangle>();
+					parts.add(area);
+					for(int j = i + 1; j < filterPasses.size(); j++)	//filtered again later
+						parts = subtract(parts, filterPasses.get(j).area);
+					for(Rectangle part : parts){
+						pixelCount += (long)part.width * part.height;
+						int[] maxima = PeakDetector.localMaxima(pixels, width, part, pass.size / 2, Float.NEGATIVE_INFINITY);
+						for(int k = 0; k < maxima.length; k += 2){
+							if(peaks == found.length)
+								found = Arrays.copyOf(found, found.length * 2);
+							found[peaks++] = ((long)maxima[k] << 32) | maxima[k + 1];
 						}
 					}
 				}
+				PeakDetector.Table table = new PeakDetector.Table(PeakDetector.unpack(found, peaks), pixels, width);
+				return table;
+			}finally{
+				stage.end(pixelCount, "pixels");
 			}
 		}
 		
-				
-		public int[][] processorToArray(FloatProcessor inData){
-			int[][] outData = new int[inData.getHeight()][inData.getWidth()];
-			for(int j = 0; j < inData.getHeight(); j++){
-				for(int i = 0; i < inData.getWidth(); i++){
-					outData[j][i] = inData.getPixel(i,j);
+		
+		/**
+		 * @return the pixels of parts outside cut, as up to four rectangles for each part
+		 */
+		private List<Rectangle> subtract(List<Rectangle> parts, Rectangle cut){
+			List<Rectangle> left = new ArrayList<Rectangle>();
+			for(Rectangle r : parts){
+				Rectangle c = r.intersection(cut);
+				if(c.isEmpty()){
+					if(!r.isEmpty())
+						left.add(r);
+					continue;
 				}
+				//above and below the cut, full width, then left and right of it
+				if(c.y > r.y)
+					left.add(new Rectangle(r.x, r.y, r.width, c.y - r.y));
+				if(c.y + c.height < r.y + r.height)
+					left.add(new Rectangle(r.x, c.y + c.height, r.width, r.y + r.height - c.y - c.height));
+				if(c.x > r.x)
+					left.add(new Rectangle(r.x, c.y, c.x - r.x, c.height));
+				if(c.x + c.width < r.x + r.width)
+					left.add(new Rectangle(c.x + c.width, c.y, r.x + r.width - c.x - c.width, c.height));
 			}
-			return outData;
+			return left;
 		}
 		
-		public FloatProcessor arrayToProcessor(int[][] inData){
-			FloatProcessor outData = new FloatProcessor(inData[0].length, inData.length);
-			for(int j = 0; j < inData.length; j++){
-				for(int i = 0; i < inData[0].length; i++){
-					outData.putPixel(i, j, inData[j][i]);
-				}
+		
+		/**
+		 * Plot the number of peaks Find Peaks keeps at each Peak Cutoff setting, with the
+		 * expected number of crystals if it is known
+		 */
+		public void cutoffHistogram(){
+			if(peakTable == null){
+				IJ.showMessage("Find peaks first.");
+				return;
+			}
+			int steps = slider[2].getMaximum() + 1;
+			float[] cutoffs = new float[steps];
+			double[] x = new double[steps];
+			double[] y = new double[steps];
+			for(int i = 0; i < steps; i++)
+				cutoffs[i] = highestPeak * i / 100;
+			int[] counts = peakTable.counts(cutoffs);
+			for(int i = 0; i < steps; i++){
+				x[i] = i;
+				y[i] = counts[i];
+			}
+			Plot plot = new Plot("Peaks vs Cutoff", "Peak Cutoff (% of highest peak)", "Peaks");
+			plot.add("line", x, y);
+			int expected = xCrystals*yCrystals;
+			plot.setLimits(0, steps - 1, 0, Math.max(peakTable.size(), expected) * 1.05 + 1);
+			if(expected > 0){
+				plot.setColor(Color.red);
+				plot.drawLine(0, expected, steps - 1, expected);
+				plot.addLabel(0.02, 0.1, "expected " + expected);
 			}
-			return outData;
+			plot.setColor(Color.blue);
+			plot.drawLine(peakCutoff, 0, peakCutoff, Math.max(peakTable.size(), expected));
+			plot.show();
 		}
 		
 		/**
@@ -590,25 +1093,25 @@ public class Crystal_Map implements PlugIn{
 		 *
 		 */
 		public void viewPeaks(){
-				Peak p;
+				int p;
 				String n, x, y, id;
 				IJ.getTextPanel().setFont(new Font("Monospaced", Font.PLAIN, 12));
 				IJ.setColumnHeadings(" point\t      x\t      y\t xtalID");
-					for (int k = 0; (k < listPoints.size()); k++) {
+					for (int k = 0; (k < peakStore.size()); k++) {
 						n = "" + k;
 						while (n.length() < 6) {
 							n = " " + n;
 						}
-						p = (Peak)listPoints.elementAt(k);
-						x = "" + p.x;
+						p = peakStore.handle(k);
+						x = "" + peakStore.getX(p);
 						while (x.length() < 7) {
 							x = " " + x;
 						}
-						y = "" + p.y;
+						y = "" + peakStore.getY(p);
 						while (y.length() < 7) {
 							y = " " + y;
 						}
-						id = "" + p.getCrystalNumber();
+						id = "" + peakStore.getCrystalNumber(p);
 						while(id.length() < 7){
 							id = " " + id;
 						}
@@ -633,24 +1136,24 @@ public class Crystal_Map implements PlugIn{
 				return;
 			try {
 				final FileWriter fw = new FileWriter(path);
-				Peak p;
+				int p;
 				String n, x, y, id;
 				fw.write("point     x     y slice color\n");
-					for (int k = 0; (k < listPoints.size()); k++) {
+					for (int k = 0; (k < peakStore.size()); k++) {
 						n = "" + k;
 						while (n.length() < 5) {
 							n = " " + n;
 						}
-						p = (Peak)listPoints.elementAt(k);
-						x = "" + p.x;
+						p = peakStore.handle(k);
+						x = "" + peakStore.getX(p);
 						while (x.length() < 5) {
 							x = " " + x;
 						}
-						y = "" + p.y;
+						y = "" + peakStore.getY(p);
 						while (y.length() < 5) {
 							y = " " + y;
 						}
-						id = "" + p.getCrystalNumber();
+						id = "" + peakStore.getCrystalNumber(p);
 						while(id.length() < 5){
 							id = " " + id;
 						}
@@ -783,6 +1286,15 @@ public class Crystal_Map implements PlugIn{
 		} 
 		
 		
+		/**
+		 * @return false while a step runs in the background, which may be reading or
+		 * numbering the peaks; the peak tools and keys do nothing until it is done
+		 */
+		public boolean isEditable(){
+			return runningStep == null;
+		}
+		
+		
 		public void keyPressed (final KeyEvent e) {
 			if(!filterMode){
 				keyPressed = true;
@@ -804,12 +1316,14 @@ public class Crystal_Map implements PlugIn{
 					}
 					return;
 				}
-				final Peak p = ph.getPoint();
-				if (p == null) {
+				if(!isEditable())
+					return;
+				final int p = ph.getPoint();
+				if (p < 0) {
 					return;
 				}
-				final int x = p.x;
-				final int y = p.y;
+				final int x = peakStore.getX(p);
+				final int y = peakStore.getY(p);
 				int scaledX;
 				int scaledY;
 				int scaledShiftedX;
@@ -877,7 +1391,7 @@ public class Crystal_Map implements PlugIn{
 				final int x = e.getX();
 				final int y = e.getY();
 		//		if (tb.getCurrentTool() == MOVE_PEAK) {
-				if(currentTool == MOVE_PEAK){
+				if(currentTool == MOVE_PEAK && isEditable()){
 					ph.movePoint(x, y);
 					imp.setRoi(ph);
 				}
@@ -937,6 +1451,8 @@ public class Crystal_Map implements PlugIn{
 				final int y = e.getY();
 				
 				if(!keyPressed){
+					if(currentTool != ZOOM && !isEditable())
+						return;
 					switch (currentTool) {
 					case ADD_PEAK:
 						ph.addPoint(
@@ -966,9 +1482,11 @@ public class Crystal_Map implements PlugIn{
 						break;
 					case CORRECT:
 						ph.findClosest(x,y);
-						Peak badPeak = ph.getPoint();
+						int badPeak = ph.getPoint();
 					//	ph.removePoint();
-						double badID = badPeak.getCrystalNumber();
+						if(badPeak < 0)
+							break;
+						double badID = peakStore.getCrystalNumber(badPeak);
 						double newID = IJ.getNumber("Enter correct crystal number:", badID);
 						if(newID != IJ.CANCELED && newID != badID){	//user entered a new, valid number
 							mapper.mapPeaks(badPeak, (int)Math.round(newID));
@@ -1099,13 +1617,13 @@ public class Crystal_Map implements PlugIn{
 		
 		private void updateStatus (
 		) {
-			final Peak p = ph.getPoint();
-			if (p == null) {
+			final int p = ph.getPoint();
+			if (p < 0) {
 				IJ.showStatus("");
 				return;
 			}
-			final int x = p.x;
-			final int y = p.y;
+			final int x = peakStore.getX(p);
+			final int y = peakStore.getY(p);
 			IJ.showStatus(imp.getLocationAsString(x, y) + getValueAsString(x, y));
 		} 
 		
@@ -1123,6 +1641,10 @@ public class Crystal_Map implements PlugIn{
 		private PointAction pa;
 		private int currentPoint = -1;
 		private boolean started = false;
+		private PeakDetector.Table table;
+		private int[] tableHandles;
+		private int tableStart = -1, tableCount = 0;
+		private PeakGrid grid;
 		
 		
 		
@@ -1135,13 +1657,72 @@ public class Crystal_Map implements PlugIn{
 		 ********************************************************************/
 		public void addPoint (final int x, final int y) {
 			addPoint(x,y,-1);
+			showRegionEdit(mapper.peakAdded(currentPoint));
 		} 
+		
+		/**
+		 * Append the maxima of table passing cutoff in one go.  Until the peak list is
+		 * edited by hand they stay a block at the end of the list, in table order, so
+		 * setCutoff can grow or shrink the block.
+		 */
+		public void addTable(final PeakDetector.Table table, final float cutoff){
+			this.table = table;
+			tableHandles = new int[table.size()];
+			tableStart = peakStore.size();
+			tableCount = 0;
+			setCutoff(cutoff, false);
+		}
+		
+		/**
+		 * Show the maxima of the last table passing cutoff; a binary search in the table
+		 * and a change to the end of the list.  The regions, once defined, follow up to
+		 * REGION_EDITS peaks one at a time; a larger change, or any change while the
+		 * slider is still being dragged, leaves them to be rebuilt once when it is let go.
+		 * @param adjusting whether the slider is still being dragged
+		 * @return false if the list no longer ends with the table block
+		 */
+		public boolean setCutoff(final float cutoff, boolean adjusting){
+			if(tableStart < 0)
+				return false;
+			int n = table.count(cutoff);
+			boolean rebuild = adjusting || Math.abs(n - tableCount) > REGION_EDITS;
+			if(rebuild && n != tableCount)
+				mapper.peaksChanged();
+			Rectangle changed = new Rectangle(0, 0, -1, -1);
+			//the block is last in the list, so removing from its end keeps the order
+			for(int k = tableCount - 1; k >= n; k--){
+				if(currentPoint == tableHandles[k])
+					currentPoint = -1;
+				grid.remove(tableHandles[k]);
+				peakStore.remove(tableHandles[k]);
+				if(!rebuild)
+					addChange(changed, mapper.peakRemoved(tableHandles[k]));
+			}
+			for(int k = tableCount; k < n; k++){
+				tableHandles[k] = peakStore.add(table.getX(k), table.getY(k));
+				peakStore.setValue(tableHandles[k], Math.round(table.getValue(k)));
+				grid.add(tableHandles[k], table.getX(k), table.getY(k));
+				if(!rebuild)
+					addChange(changed, mapper.peakAdded(tableHandles[k]));
+			}
+			tableCount = n;
+			if(!adjusting)
+				addChange(changed, mapper.updateRegions());
+			showRegionEdit(changed);
+			if(currentPoint < 0 && peakStore.size() > 0)
+				currentPoint = peakStore.handle(peakStore.size() - 1);
+			return true;
+		}
+		
+		private void addChange(Rectangle changed, Rectangle edit){
+			if(edit != null)
+				changed.add(edit);
+		}
+		
 		public void addPoint( final int x, final int y, final int id){
-			final Peak p = new Peak(x,y);
-			p.setCrystalNumber(id);
-			listPoints.addElement(p);
-			currentPoint = numPoints;
-			numPoints++;
+			tableStart = -1;
+			currentPoint = peakStore.add(x, y, id);
+			grid.add(currentPoint, x, y);
 		}
 		
 		/**
@@ -1188,14 +1769,15 @@ public class Crystal_Map implements PlugIn{
 				final float mag = (float)ic.getMagnification();
 				final int dx = (int)(mag / 2.0);
 				final int dy = (int)(mag / 2.0);
-				for (int k = 0; (k < numPoints); k++) {
-					final Peak p = (Peak)listPoints.elementAt(k);
+				for (int k = 0; (k < peakStore.size()); k++) {
+					final int p = peakStore.handle(k);
+					final int x = peakStore.getX(p), y = peakStore.getY(p);
 					g.setColor(color);
 			//		if(displayPoints)
-						g.fillOval(ic.screenX(p.x - SIZE) + dx, ic.screenY(p.y - SIZE) + dy, (SIZE+(int)mag)*2, (SIZE+(int)mag)*2);
+						g.fillOval(ic.screenX(x - SIZE) + dx, ic.screenY(y - SIZE) + dy, (SIZE+(int)mag)*2, (SIZE+(int)mag)*2);
 					if(displayRegions)
-						if(p.getCrystalNumber() >= 0)
-							g.drawString(Integer.toString(p.getCrystalNumber()), ic.screenX(p.x - SIZE) + dx, ic.screenY(p.y - SIZE) + dy);
+						if(peakStore.getCrystalNumber(p) >= 0)
+							g.drawString(Integer.toString(peakStore.getCrystalNumber(p)), ic.screenX(x - SIZE) + dx, ic.screenY(y - SIZE) + dy);
 				}
 				if (updateFullWindow) {
 					updateFullWindow = false;
@@ -1211,44 +1793,22 @@ public class Crystal_Map implements PlugIn{
 		 @param y Vertical coordinate, in canvas units.
 		 ********************************************************************/
 		public void findClosest (int x, int y) {
-			if (numPoints == 0) {
+			if (peakStore.size() == 0) {
 				return;
 			}
-			x = ic.offScreenX(x);
-			y = ic.offScreenY(y);
-			Peak q = new Peak(x,y);
-			Peak p = (Peak)listPoints.elementAt(currentPoint);
-			double distance = q.distance(p);;
-			for (int k = 0; (k < numPoints); k++) {
-				p = (Peak)listPoints.elementAt(k);
-				double candidate = q.distance(p);
-				if (candidate < distance) {
-					distance = candidate;
-					currentPoint = k;
-				}
-			}
+			currentPoint = grid.nearest(ic.offScreenX(x), ic.offScreenY(y), currentPoint, peakStore);
 		} 
 		
 		
 		/*********************************************************************
-		 Return the current point as a <code>Point</code> object.
+		 Return the handle of the current point in peakStore, or -1.
 		 ********************************************************************/
-		public Peak getPoint (
+		public int getPoint (
 		) {
-			return((0 <= currentPoint) ? ((Peak)listPoints.elementAt(currentPoint))
-					: (null));
+			return(currentPoint);
 		}
 		
 		
-		/*********************************************************************
-		 Return the list of points.
-		 ********************************************************************/
-		public Vector getPoints (
-		) {
-			return(listPoints);
-		} 
-		
-		
 		/*********************************************************************
 		 Modify the location of the current point. Clip the admissible range
 		 to the image size.
@@ -1263,11 +1823,10 @@ public class Crystal_Map implements PlugIn{
 				x = (imp.getWidth() <= x) ? (imp.getWidth() - 1) : (x);
 				y = (y < 0) ? (0) : (y);
 				y = (imp.getHeight() <= y) ? (imp.getHeight() - 1) : (y);
-				Peak peak = (Peak)(listPoints.elementAt(currentPoint));
-				peak.x = x;
-				peak.y = y;
-				listPoints.removeElementAt(currentPoint);
-				listPoints.insertElementAt(peak, currentPoint);
+				tableStart = -1;
+				peakStore.setLocation(currentPoint, x, y);
+				grid.move(currentPoint, x, y);
+				showRegionEdit(mapper.peakMoved(currentPoint));
 			}
 		} 
 		
@@ -1277,7 +1836,11 @@ public class Crystal_Map implements PlugIn{
 		 ********************************************************************/
 		public void nextPoint (
 		) {
-			currentPoint = (currentPoint == (numPoints - 1)) ? (0) : (currentPoint + 1);
+			if (peakStore.size() == 0) {
+				return;
+			}
+			final int k = (currentPoint < 0) ? (-1) : (peakStore.indexOf(currentPoint));
+			currentPoint = peakStore.handle((k == (peakStore.size() - 1)) ? (0) : (k + 1));
 		} 
 		
 		
@@ -1291,6 +1854,7 @@ public class Crystal_Map implements PlugIn{
 		public PointHandler (final ImagePlus imp) {
 			super(0, 0, imp.getWidth(), imp.getHeight(), imp);
 			this.imp = imp;
+			grid = new PeakGrid(imp.getWidth(), imp.getHeight(), 16);
 	//		this.tb = tb;
 		} 
 		
@@ -1299,11 +1863,13 @@ public class Crystal_Map implements PlugIn{
 		 Remove the current point. Make its color available again.
 		 ********************************************************************/
 		public void removePoint () {
-			if (0 < numPoints) {
-				listPoints.removeElementAt(currentPoint);
-				numPoints--;
+			tableStart = -1;
+			if (0 <= currentPoint) {
+				grid.remove(currentPoint);
+				peakStore.remove(currentPoint);
+				showRegionEdit(mapper.peakRemoved(currentPoint));
 			}
-			currentPoint = numPoints - 1;
+			currentPoint = (0 < peakStore.size()) ? (peakStore.handle(peakStore.size() - 1)) : (-1);
 		} 
 		
 		
@@ -1311,8 +1877,10 @@ public class Crystal_Map implements PlugIn{
 		 Remove all points and make every color available.
 		 ********************************************************************/
 		public void removePoints () {
-			listPoints.removeAllElements();
-			numPoints = 0;
+			tableStart = -1;
+			peakStore.clear();
+			grid.clear();
+			mapper.peaksCleared();
 			currentPoint = -1;
 		//	tb.setTool(pointAction.ADD_PEAK);
 			imp.setRoi(this);
@@ -1342,108 +1910,212 @@ public class Crystal_Map implements PlugIn{
 	private class PeakMapper{
 		
 		final int OUTSIDE_DETECTOR = 67108864;
-		private Point[][] nearest = new Point[height][width];
-		public float[][] zones;
+		//boundary mask colors: 0 transparent, anything else white
+		final IndexColorModel BOUNDARY_COLORS = boundaryColors();
+		public float[] zones;		//crystal number of each pixel, row by row, shared with the region image
 		private int peaks;
 		private int detDimension;
-		public Set preMap = new HashSet();
-		private Set postMap = new HashSet();//xCrystals*crystals);
-		private Set borderPeaks = new HashSet();
+		//handles into peakStore
+		public PeakStore.Subset preMap = new PeakStore.Subset();
+		private PeakStore.Subset postMap = new PeakStore.Subset();//xCrystals*crystals);
 		private double aveDistX, aveDistY;
 		private double xMin, xMax, yMin, yMax;
+		private double[] columnGaps = new double[0], rowGaps = new double[0];
 		private boolean complete = false;
-		Iterator it;
-		
-		
-		public PeakMapper(){
-			zones = new float[height][width];
+		private ByteProcessor boundaries;
+		//unmapped peaks bucketed for findFirstPeak and findNext
+		private PeakGrid candidates;
+		private double searchX, searchY;
+		//regions of the peaks and false border peaks, and the seed of each peak by handle
+		private RegionMap regions;
+		private int[] peakSeed = new int[0];
+		private boolean stale = false;		//peaks changed since the regions were last updated
+		
+		
+		private IndexColorModel boundaryColors(){
+			byte[] white = new byte[256];
+			Arrays.fill(white, 1, 256, (byte)255);
+			return new IndexColorModel(8, 256, white, white, white, 0);
 		}
 		
 		public boolean isComplete(){
 			return complete;
 		}
 		
+		/**
+		 * @return mask of the boundaries found by the last defineRegions(), 255 on a boundary
+		 * and transparent elsewhere, for an overlay
+		 */
+		public ByteProcessor getBoundaries(){
+			return boundaries;
+		}
+		
 		
+		/**
+		 * Label every pixel with the crystal number of the nearest peak, or OUTSIDE_DETECTOR
+		 * if a false border peak is nearer, with an exact distance transform
+		 */
 		public FloatProcessor defineRegions(){
 			
-			int counter = 0;
-			int xtalID;
 			IJ.showStatus("Calculating voronoi regions...");
-			createFalseBorderPeaks();
-			complete = false;
-			int range = largestPeakSize*2;
-			if(range == 0)
-				range = peakSize*2;
-			
-		//	for(int i = 0; i < width; i++){
-		//		for(int j = 0; j < height; j++){
-		//			zones[j][i] = OUTSIDE_DETECTOR;
-		//		}
-		//	}
-			
-			for (int k = 0; (k < numPoints); k++) {
-				
-				if(k%50 == 0){
-					IJ.showProgress((new Integer(k)).doubleValue()/(new Integer(numPoints)).doubleValue());
-				}
-
-				Peak tempPeak = (Peak)listPoints.elementAt(k);
-				xtalID = tempPeak.getCrystalNumber();
-				defineRegion(tempPeak.x, tempPeak.y, xtalID, range);
-
+			Stage stage = new Stage("Define Regions");
+			try{
+				complete = false;
+				buildRegions();
+				//a new array, as the region image of the last run still shows the old one
+				zones = new float[width * height];
+				updateZones(regions.getChanged());
+				IJ.showStatus("");
+				complete = true;
+			}finally{
+				stage.end((long)width * height, "pixels");
 			}
-			IJ.showProgress(1.0);
-			
-		//	IJ.showStatus("Defining exterior crystal edges...");
-			
-		//	it = borderPeaks.iterator();
-		//	int size = borderPeaks.size();
-		//	counter = 0;
-		//	while(it.hasNext()){
-		//		if(counter%10 == 0)
-		//			IJ.showProgress((new Integer(counter)).doubleValue()/(new Integer(size)).doubleValue());
-
-		//		Peak tempPeak = (Peak)it.next();
-		//		defineRegion(tempPeak.x, tempPeak.y, OUTSIDE_DETECTOR, Math.max(width - tempPeak.x, height - tempPeak.y));
-		//		counter++;
-
-		//	}
-		//	IJ.showProgress(1.0);
-			IJ.showStatus("");
-			complete = true;
 			
-			for(int i = 1; i < (width-1); i++){
-				for(int j = 1; j < (height-1); j++){
-					if((zones[j][i] != zones[j][i+1]) || (zones[j][i] != zones[j][i+1]) || (zones[j][i] != zones[j+1][i]) || (zones[j][i] != zones[j-1][i]))
-							rawPlusBoundaries.putPixelValue(i, j, highestPeak);
-				}
+			//boundaries go into a fresh mask, published by the caller once this step is done
+			stage = new Stage("Boundaries");
+			try{
+				boundaries = new ByteProcessor(width, height);
+				boundaries.setColorModel(BOUNDARY_COLORS);
+				drawBoundaries(new Rectangle(0, 0, width, height));
+			}finally{
+				stage.end((long)width * height, "pixels");
 			}
 
-			return arrayToProcessor(zones);
+			return new FloatProcessor(width, height, zones);
 		}
 		
 		
 		/**
-		 * utility method to convert and assign a 2d array to a 1d array and an ImageJ ImageProcessor
-		 * @param inData
-		 * @return
+		 * regions of the peaks now in peakStore and of the false border peaks
 		 */
-		private FloatProcessor arrayToProcessor(float[][] inData){
-			float[] procData = new float[inData.length * inData[0].length];
-			FloatProcessor processor = new FloatProcessor(inData[0].length, inData.length);
-			for(int j = 0; j < inData.length; j++){
-				for(int i = 0; i < inData[0].length; i++){
-					procData[j*inData[0].length + i] = inData[j][i];
-				}
+		private void buildRegions(){
+			regions = new RegionMap(width, height);
+			peakSeed = new int[peakStore.capacity()];
+			Arrays.fill(peakSeed, -1);
+			for (int k = 0; (k < peakStore.size()); k++) {
+				int tempPeak = peakStore.handle(k);
+				peakSeed[tempPeak] = regions.addSeed(peakStore.getX(tempPeak), peakStore.getY(tempPeak), peakStore.getCrystalNumber(tempPeak));
 			}
-			processor.setPixels(procData);
-			return processor;
+			createFalseBorderPeaks();
+			regions.build();
+			stale = false;
 		}
 		
 		
 		/**
-		 * 
-		 *
+		 * Peaks are about to be added or removed without peakAdded() or peakRemoved():
+		 * the regions are left as they are until updateRegions()
+		 */
+		public void peaksChanged(){
+			if(complete)
+				stale = true;
+		}
+		
+		/**
+		 * Rebuild the regions, in place, if peaks changed since they were last updated
+		 * @return pixels of zones and getBoundaries() that changed, or null
+		 */
+		public Rectangle updateRegions(){
+			if(!complete || !stale)
+				return null;
+			buildRegions();
+			Rectangle all = new Rectangle(0, 0, width, height);
+			updateZones(all);
+			drawBoundaries(all);
+			return all;
+		}
+		
+		/**
+		 * Update the regions after peak h was added, moved or removed by hand, relabeling only
+		 * the cells next to it.  Nothing is done until defineRegions() has run; regions
+		 * waiting for updateRegions() are rebuilt instead.
+		 * @return pixels of zones and getBoundaries() that changed, or null
+		 */
+		public Rectangle peakAdded(int h){
+			if(!complete || stale)
+				return updateRegions();
+			if(h >= peakSeed.length){
+				int old = peakSeed.length;
+				peakSeed = Arrays.copyOf(peakSeed, Math.max(2*old, h + 1));
+				Arrays.fill(peakSeed, old, peakSeed.length, -1);
+			}
+			peakSeed[h] = regions.add(peakStore.getX(h), peakStore.getY(h), peakStore.getCrystalNumber(h));
+			return regionsEdited();
+		}
+		
+		public Rectangle peakMoved(int h){
+			if(!complete || stale)
+				return updateRegions();
+			if(h >= peakSeed.length || peakSeed[h] < 0)
+				return null;
+			regions.move(peakSeed[h], peakStore.getX(h), peakStore.getY(h));
+			return regionsEdited();
+		}
+		
+		public Rectangle peakRemoved(int h){
+			if(!complete || stale)
+				return updateRegions();
+			if(h >= peakSeed.length || peakSeed[h] < 0)
+				return null;
+			regions.remove(peakSeed[h]);
+			peakSeed[h] = -1;
+			return regionsEdited();
+		}
+		
+		/**
+		 * All peaks were removed: the regions still hold their seeds, so they wait for
+		 * updateRegions(), or for the next peak edit, to be rebuilt
+		 */
+		public void peaksCleared(){
+			Arrays.fill(peakSeed, -1);
+			peaksChanged();
+		}
+		
+		private Rectangle regionsEdited(){
+			Rectangle changed = regions.getChanged();
+			updateZones(changed);
+			//a boundary pixel depends on its neighbors
+			Rectangle edge = new Rectangle(changed);
+			edge.grow(1, 1);
+			drawBoundaries(edge);
+			return edge.intersection(new Rectangle(0, 0, width, height));
+		}
+		
+		/**
+		 * copy the labels of area from regions to zones
+		 */
+		private void updateZones(Rectangle area){
+			for(int j = area.y; j < area.y + area.height; j++){
+				for(int i = area.x; i < area.x + area.width; i++)
+					zones[j*width + i] = regions.getLabel(i, j);
+			}
+		}
+		
+		/**
+		 * set the pixels of area on a region boundary in the boundary mask, and clear the others;
+		 * rows run on the Parallel pool
+		 */
+		private void drawBoundaries(Rectangle area){
+			final int x0 = Math.max(area.x, 1), x1 = Math.min(area.x + area.width, width - 1);
+			int y0 = Math.max(area.y, 1), y1 = Math.min(area.y + area.height, height - 1);
+			final byte[] mask = (byte[])boundaries.getPixels();
+			Parallel.forRange(y0, y1, 16, new Parallel.Range(){
+				public void run(int from, int to){
+					for(int j = from; j < to; j++){
+						for(int i = x0; i < x1; i++){
+							int p = j*width + i;
+							boolean edge = (zones[p] != zones[p+1]) || (zones[p] != zones[p+width]) || (zones[p] != zones[p-width]);
+							mask[p] = edge ? (byte)255 : 0;
+						}
+					}
+				}
+			});
+		}
+		
+		
+		/**
+		 * Surround the peaks with a ring of OUTSIDE_DETECTOR seeds, one peak size outside
+		 * the outermost peaks and one peak size apart
 		 */
 		public void createFalseBorderPeaks(){
 			
@@ -1452,107 +2124,132 @@ public class Crystal_Map implements PlugIn{
 			//		| * * |
 			//		- - - -
 			
-			Peak tempPeak;
-			borderPeaks.clear();
+			int step = Math.max(peakSize, 1);
+			int left = (int)(xMin - peakSize), right = (int)(xMax + peakSize);
+			int bottom = (int)(yMin - peakSize), top = (int)(yMax + peakSize);
 			//top and bottom
-			for(int xPos = (int)(xMin - peakSize); xPos < (int)(xMax + peakSize); xPos += peakSize){
-			//	tempPeak = new Peak(xPos, (int)(yMin - peakSize));	//bottom row
-			//	borderPeaks.add(tempPeak);
-				defineRegion(xPos, (int)(yMin-peakSize), OUTSIDE_DETECTOR, width);
-				defineRegion(xPos, (int)(yMin+peakSize), OUTSIDE_DETECTOR, width);
-			//	tempPeak = new Peak(xPos, (int)(yMax + peakSize));	//top row
-			//	borderPeaks.add(tempPeak);
+			for(int xPos = left; xPos <= right; xPos += step){
+				addBorderSeed(xPos, bottom);
+				addBorderSeed(xPos, top);
 			}
 			
 			//left and right
-			for(int yPos = (int)yMin; yPos < (int)yMax; yPos += peakSize){
-		//		tempPeak = new Peak((int)(xMin - peakSize), yPos);	//left column
-		//		borderPeaks.add(tempPeak);
-		//		tempPeak = new Peak((int)(xMax + peakSize), yPos);	//left column
-		//		borderPeaks.add(tempPeak);
-				defineRegion((int)(xMin-peakSize), yPos, OUTSIDE_DETECTOR, width);
-				defineRegion((int)(xMin+peakSize), yPos, OUTSIDE_DETECTOR, width);
-			}
-		}
-		
-		
-		public void defineRegion(int x, int y, int xtalID, int range) {
-			Point p = new Point(x, y);
-			int yMax;
-			if(range > x || range > y)
-				range = Math.min(x,y);
-			if(x > (width-range) || y > (height-range))
-				range = Math.min(width-x, height-y);
-			int r2 = range*range;
-			// compare each pixel (i, j) and find nearest point
-			for(int i = (x - range); i < (x + range); i++){
-				yMax = (int)(Math.sqrt(r2 - (x-i)*(x-i)) + 0.5);
-				for(int j = (y-yMax); j < (y+yMax); j++){
-					Peak q = new Peak(i, j);
-					if ((nearest[i][j] == null) || (q.distanceTo(p) < q.distanceTo(nearest[i][j]))) {
-						nearest[i][j] = p;
-						zones[j][i] = (float)xtalID;
-						System.out.println("zones[" + j + "][" + i + "] = " + zones[j][i]);
-					}
-				}
+			for(int yPos = bottom + step; yPos < top; yPos += step){
+				addBorderSeed(left, yPos);
+				addBorderSeed(right, yPos);
 			}
 		}
 		
+		/**
+		 * A false border peak off the image is left out rather than clamped onto its edge,
+		 * so the pixels between the outermost peaks and the edge stay with those peaks
+		 */
+		private void addBorderSeed(int x, int y){
+			if(x >= 0 && y >= 0 && x < width && y < height)
+				regions.addSeed(x, y, OUTSIDE_DETECTOR);
+		}
+		
 		
 		/**
 		 * Enumerates peaks with crystal numbers
 		 * maps all peaks if input values equal 0,0
 		 * if input values are other than 0,0 leaves in place previous enumerations less than oldID, 
 		 * explicitely sets the peak that previously had oldID to newID, and starts fresh enumerating
-		 * any remaining peaks greater than or equal to oldID
+		 * any remaining peaks greater than or equal to oldID.  Enumeration stops at the first row
+		 * that comes out as before once the same peaks are left to number, and the rest keep their numbers
 		 * @param oldID
 		 * @param newID
 		 * @return
 		 */
-		public boolean mapPeaks(Peak badPeak, int newID){
+		public boolean mapPeaks(int badPeak, int newID){
 			
-			Peak lowPeak = null;
-			Peak tempPeak = null;
-			Peak lastPeak = null;
+			int lowPeak = -1;
+			int tempPeak = -1;
+			int lastPeak = -1;
 			boolean successful = true;
 		//	double lastRowHeight = 0;
 		//	int rowCount, colCount;
 			preMap.clear();
 			postMap.clear();
 			int currentCrystal = 0;
+			int totalCrystals = xCrystals*yCrystals;
+			//crystal numbers before a correction, and how many of them are below each number
+			int[] previous = null, previousBelow = null;
+			int highestPrevious = -1;	//highest previous number of the peaks numbered so far
+			boolean rowChanged = true;
 			
-			if(badPeak == null){	//do all peaks - disregard any previous enumerations
-				preMap.addAll(listPoints);
+			if(badPeak < 0){	//do all peaks - disregard any previous enumerations
+				preMap.addAll(peakStore);
 				String result = characterize();
 				if(!result.equals("successful")){
 					IJ.showMessage(result);
 					return false;
 				}
+				if(mappingMethod.equals("Delaunay")){	//one triangulation, then a walk over its neighbor graph
+					result = DelaunayMapper.map(peakStore, preMap, xCrystals, yCrystals);
+					if(!result.equals(DelaunayMapper.SUCCESSFUL)){
+						IJ.showMessage(result);
+						return false;
+					}
+					for(int i = 0; i < preMap.size(); i++){
+						int h = preMap.get(i);
+						postMap.add(h);
+						if(peakStore.getColumn(h) == 0)	//a correction starts each row from the one above
+							rowHeight[peakStore.getRow(h) + 1] = peakStore.getY(h);
+					}
+					preMap.clear();
+					return true;
+				}
 				currentCrystal = 0;
 		//		rowHeight = new double[yCrystals+1];
 			}
 			else{	//correct problematic peak and try to enumerate again subsequent peaks
-				badPeak.setCrystalNumber(newID);
+				previous = new int[peakStore.capacity()];
+				previousBelow = new int[totalCrystals + 1];
+				for(int i = 0; i < peakStore.size(); i++){
+					tempPeak = peakStore.handle(i);
+					previous[tempPeak] = peakStore.getCrystalNumber(tempPeak);
+					if(previous[tempPeak] >= 0 && previous[tempPeak] < totalCrystals)
+						previousBelow[previous[tempPeak] + 1]++;
+				}
+				for(int c = 1; c <= totalCrystals; c++)
+					previousBelow[c] += previousBelow[c - 1];
+				peakStore.setCrystalNumber(badPeak, newID);
 				lastPeak = badPeak;
 				postMap.add(badPeak);
 				currentCrystal = newID + 1;
-				for(int i = 0; i < numPoints; i++){
-					tempPeak = (Peak)listPoints.elementAt(i);
-					if(tempPeak.getCrystalNumber() < newID && tempPeak.getCrystalNumber() > -1)
+				for(int i = 0; i < peakStore.size(); i++){
+					tempPeak = peakStore.handle(i);
+					if(peakStore.getCrystalNumber(tempPeak) < newID && peakStore.getCrystalNumber(tempPeak) > -1)
 						postMap.add(tempPeak);	//this peak is already correctly numbered
 					else
 						preMap.add(tempPeak);
 				}
 				preMap.remove(badPeak);
+				for(int i = 0; i < postMap.size(); i++)
+					highestPrevious = Math.max(highestPrevious, (previous[postMap.get(i)] < 0) ? Integer.MAX_VALUE : previous[postMap.get(i)]);
 			}
+			buildCandidates();
 			try{
-				int totalCrystals = xCrystals*yCrystals;
-				System.out.println("total crystals = " + totalCrystals);
 				while(currentCrystal < totalCrystals){
+					Parallel.checkpoint(currentCrystal, totalCrystals);
 				//	System.out.println(currentCrystal);
 					if((currentCrystal == 0) || (currentCrystal % xCrystals == 0)){	//this is the first crystal in a new row
+						if(previous != null && currentCrystal > 0 && !rowChanged
+								&& highestPrevious < currentCrystal && postMap.size() == previousBelow[currentCrystal]){
+							//the last row came out as before and the peaks left are the ones numbered from here on
+							//before, so enumerating them again would give the same numbers
+							IJ.showStatus("Renumbered crystals " + newID + " to " + (currentCrystal - 1));
+							for(int i = 0; i < preMap.size(); i++)
+								postMap.add(preMap.get(i));
+							preMap.clear();
+							return successful;
+						}
+						rowChanged = false;
 						lowPeak = findFirstPeak(rowHeight[currentCrystal / xCrystals]);
-						rowHeight[(currentCrystal / xCrystals) + 1] = lowPeak.getY();
+						if(lowPeak < 0)
+							return false;
+						rowHeight[(currentCrystal / xCrystals) + 1] = peakStore.getY(lowPeak);
 						lastPeak = lowPeak;
 						if(!mapPeak(lowPeak, currentCrystal))
 							return false;
@@ -1562,12 +2259,16 @@ public class Crystal_Map implements PlugIn{
 						//			lowPeak = findNextDetector(lastPeak.getX(), lastPeak.getY());
 						//		}
 						//		else{
-						lowPeak = findNext(lastPeak.getX(), lastPeak.getY());
+						lowPeak = findNext(peakStore.getX(lastPeak), peakStore.getY(lastPeak));
 						//		}
 						lastPeak = lowPeak;
 						if(!mapPeak(lowPeak, currentCrystal))
 							return false;
 					}
+					if(previous != null){
+						rowChanged |= previous[lowPeak] != currentCrystal;
+						highestPrevious = Math.max(highestPrevious, (previous[lowPeak] < 0) ? Integer.MAX_VALUE : previous[lowPeak]);
+					}
 					currentCrystal++;
 				}
 			}catch(NullPointerException e){
@@ -1581,125 +2282,124 @@ public class Crystal_Map implements PlugIn{
 		/*
 		 *	Returns true if peak is successfully mapped.  If this peak does not exist or it cannot be mapped, returns false
 		 */
-		private boolean mapPeak(Peak peak, int row, int col){	
-			try{		
-				peak.setRow(row);	//assign peak row
-				peak.setColumn(col);	//assign peak column
-				peak.setCrystalNumber(row*xCrystals + col);
-				postMap.add(peak);	//add this mapped peak to postMap, the Set of mapped peaks
-				preMap.remove(peak);	//remove this mapped peak from preMap, the set of unmapped peaks
-				peak = null;		//remove this reference
-			}catch(NullPointerException e){
+		private boolean mapPeak(int peak, int row, int col){	
+			if(peak < 0)
 				return false;
-			}
+			peakStore.setRow(peak, row);	//assign peak row
+			peakStore.setColumn(peak, col);	//assign peak column
+			peakStore.setCrystalNumber(peak, row*xCrystals + col);
+			postMap.add(peak);	//add this mapped peak to postMap, the Set of mapped peaks
+			if(preMap.contains(peak))
+				candidates.remove(peak);
+			preMap.remove(peak);	//remove this mapped peak from preMap, the set of unmapped peaks
 			return true;
 		}
 		
 		/*
 		 *	Returns true if peak is successfully mapped.  If this peak does not exist or it cannot be mapped, returns false
 		 */
-		private boolean mapPeak(Peak peak, int id){	
-			try{		
-				peak.setCrystalNumber(id);
-				postMap.add(peak);	//add this mapped peak to postMap, the Set of mapped peaks
-				preMap.remove(peak);	//remove this mapped peak from preMap, the set of unmapped peaks
-				peak = null;		//remove this reference
-			}catch(NullPointerException e){
+		private boolean mapPeak(int peak, int id){	
+			if(peak < 0)
 				return false;
-			}
+			peakStore.setCrystalNumber(peak, id);
+			postMap.add(peak);	//add this mapped peak to postMap, the Set of mapped peaks
+			if(preMap.contains(peak))
+				candidates.remove(peak);
+			preMap.remove(peak);	//remove this mapped peak from preMap, the set of unmapped peaks
 			return true;
 		}
 		
 		
+		/*
+		 *	Bucket the unmapped peaks in a grid of about one crystal per cell, so findFirstPeak
+		 *	and findNext only score the peaks near the point they search from
+		 */
+		private void buildCandidates(){
+			candidates = new PeakGrid(width, height, Math.max((int)aveDistX, 8), Math.max((int)aveDistY, 8));
+			for(int i = 0; i < preMap.size(); i++){
+				int h = preMap.get(i);
+				candidates.add(h, peakStore.getX(h), peakStore.getY(h));
+			}
+		}
+		
+		
 		/*
 		 *	Find the first peak in a new row	
 		 */
-		private Peak findFirstPeak(double lastY){
-			
-			Peak lowPeak = null;
-			Peak tempPeak = null;
-			double sum, dist, min;
-			double xDiff, yDiff;
-			double theta = 0;
+		private int findFirstPeak(double lastY){
+			searchY = lastY;
 			//new row, find the first peak in row without comparison to prior members
-			min = width*2;
-			it = preMap.iterator();
-			while(it.hasNext()){
-				tempPeak = (Peak)it.next();
-				xDiff = tempPeak.getX();
-				yDiff = tempPeak.getY() - lastY;
-				theta = Math.atan(yDiff/xDiff);
-				dist = Math.sqrt(Math.pow(xDiff,2) + Math.pow(yDiff,2));
-				if((theta + dist/xMin) < min){		
-					lowPeak = tempPeak;	//after looping through all peaks, lowPeak will be the first peak in the lowest remaining column
-					min = (theta + dist/xMin);
-				}
-			}
-			return lowPeak;
+			return candidates.search(0, (int)lastY, width*2, firstScore);
 		}
 		
 		
 		/*
 		 *	Finds the next peak in the current row - must not be the first peak in a row nor the first peak in a segmented pmt
 		 */
-		private Peak findNext(double lastX, double lastY){
-			
-			Iterator it;
-			Peak lowPeak = null;
-			Peak tempPeak = null;
-			double x, y;
-			double xDiff, yDiff, dist;
-			final double RANGE = aveDistX;
-			double theta = 0.0;
-			double min = 1000.0;
-			
-			it = preMap.iterator();
-			
-			while(it.hasNext()){	//for each mapped point, go through every peak to find minimum row and column
-				
-				tempPeak = (Peak)it.next();		//get the next peak
-				x = tempPeak.getX();		//record x coordinate
-				y = tempPeak.getY();		//record y coordinate
-				xDiff = x - lastX;	//distance in x between this peak and last mapped peak, weighted by factor of 2	
-				yDiff = y - lastY;		//distance in y between this peak and last mapped peak, un-weighted
-				
-				
-				if(xDiff > 0 && yDiff < RANGE){		//first stipulation - next peak in row must lie to right of lastPeak and within RANGE of lastPeak.getY()
-					
-					theta = Math.atan(yDiff/xDiff);
-					dist = Math.sqrt(Math.pow(xDiff,2) + Math.pow(yDiff,2));
-					if((theta*1.2 + dist/aveDistX) < min){
-						lowPeak = tempPeak;
-						min = (theta*1.2 + dist/aveDistX);	//this will be the closest peak to lastPeak in x; must now check if there are any other peaks closer in y
-					}
-				}
-			}
-			
-			return lowPeak;	
+		private int findNext(double lastX, double lastY){
+			searchX = lastX;
+			searchY = lastY;
+			return candidates.search((int)lastX, (int)lastY, 1000.0, nextScore);
 		}
 		
 		
+		/*
+		 *	Scores of findFirstPeak and findNext; a lower score is a better peak.  The search order
+		 *	does not matter: ties go to the peak first in preMap, as a scan of preMap would find.
+		 */
+		private final PeakGrid.Score firstScore = new PeakGrid.Score(){
+			public double of(int h){
+				double xDiff = peakStore.getX(h);
+				double yDiff = peakStore.getY(h) - searchY;
+				double theta = Math.atan(yDiff/xDiff);
+				double dist = Math.sqrt(Math.pow(xDiff,2) + Math.pow(yDiff,2));
+				return theta + dist/xMin;	//after all peaks, the lowest is the first peak in the lowest remaining column
+			}
+			public double atLeast(double distance){
+				return (xMin > 0) ? (distance/xMin - Math.PI/2 - 1e-9) : Double.NEGATIVE_INFINITY;
+			}
+			public int order(int h){
+				return preMap.indexOf(h);
+			}
+		};
+		
+		private final PeakGrid.Score nextScore = new PeakGrid.Score(){
+			public double of(int h){
+				double xDiff = peakStore.getX(h) - searchX;	//distance in x between this peak and last mapped peak
+				double yDiff = peakStore.getY(h) - searchY;	//distance in y between this peak and last mapped peak
+				if(!(xDiff > 0 && yDiff < aveDistX))	//next peak in row must lie to right of lastPeak and within RANGE of lastPeak.getY()
+					return Double.NaN;
+				double theta = Math.atan(yDiff/xDiff);
+				double dist = Math.sqrt(Math.pow(xDiff,2) + Math.pow(yDiff,2));
+				return theta*1.2 + dist/aveDistX;
+			}
+			public double atLeast(double distance){
+				return (aveDistX > 0) ? (distance/aveDistX - 0.6*Math.PI - 1e-9) : Double.NEGATIVE_INFINITY;
+			}
+			public int order(int h){
+				return preMap.indexOf(h);
+			}
+		};
+		
+		
 		/*
 		 *	If the crystal array is segmented into multiple pmt regions, this method must be called when spanning the gap from one pmt to another
 		 */
-		private Peak findNextDetector(double lastX, double lastY){
+		private int findNextDetector(double lastX, double lastY){
 			
-			Iterator it;
-			Peak lowPeak = null;
-			Peak tempPeak = null;
+			int lowPeak = -1;
+			int tempPeak = -1;
 			double x, y;
 			double xDiff, yDiff, dist;
 			final double RANGE = aveDistX*2;
 			double theta = 0.0;
 			double min = 1000.0;
 			
-			it = preMap.iterator();
-			
-			while(it.hasNext()){	//for each mapped point, go through every peak to find minimum row and column
+			for(int i = 0; i < preMap.size(); i++){	//for each mapped point, go through every peak to find minimum row and column
 				
-				tempPeak = (Peak)it.next();		//get the next peak
-				x = tempPeak.getX();		//record x coordinate
-				y = tempPeak.getY();		//record y coordinate
+				tempPeak = preMap.get(i);		//get the next peak
+				x = peakStore.getX(tempPeak);		//record x coordinate
+				y = peakStore.getY(tempPeak);		//record y coordinate
 				xDiff = x - lastX;	//distance in x between this peak and last mapped peak, weighted by factor of 2	
 				yDiff = y - lastY;		//distance in y between this peak and last mapped peak, un-weighted
 				
@@ -1727,20 +2427,19 @@ public class Crystal_Map implements PlugIn{
 			xMax = 0;
 			yMin = height; 
 			yMax = 0;
-			Peak tempPeak;
-			Iterator it = preMap.iterator();
+			int tempPeak;
 			peaks = 0;
-			while(it.hasNext()){			//find number of peaks and average distance between peaks
+			for(int i = 0; i < preMap.size(); i++){			//find number of peaks and average distance between peaks
 				peaks++;
-				tempPeak = (Peak)it.next();
-				if(tempPeak.getX() < xMin)	//pick out the lowest peak in x
-					xMin = tempPeak.getX();
-				if(tempPeak.getX() > xMax)	//pick out the highest peak in x
-					xMax = tempPeak.getX();
-				if(tempPeak.getY() < yMin)
-					yMin = tempPeak.getY();
-				if(tempPeak.getY() > yMax)
-					yMax = tempPeak.getY();
+				tempPeak = preMap.get(i);
+				if(peakStore.getX(tempPeak) < xMin)	//pick out the lowest peak in x
+					xMin = peakStore.getX(tempPeak);
+				if(peakStore.getX(tempPeak) > xMax)	//pick out the highest peak in x
+					xMax = peakStore.getX(tempPeak);
+				if(peakStore.getY(tempPeak) < yMin)
+					yMin = peakStore.getY(tempPeak);
+				if(peakStore.getY(tempPeak) > yMax)
+					yMax = peakStore.getY(tempPeak);
 			}
 			int expected = xCrystals*yCrystals;
 			if(peaks > expected)
@@ -1753,10 +2452,7 @@ public class Crystal_Map implements PlugIn{
 //			System.out.println("crystals = " + crystals + " ; aveDistX = " + aveDistX);
 			
 			//find gaps between pmt, if they exist at all
-			Iterator it2;
-			it = preMap.iterator();
-			Peak currentPeak;
-			double currentX, currentY;
+			int currentPeak;
 			
 			int xBins = (int)((xMax - xMin) / aveDistX);
 			int yBins = (int)((yMax - yMin) / aveDistY);
@@ -1766,158 +2462,179 @@ public class Crystal_Map implements PlugIn{
 			int hasLocalX = 0, hasLocalY = 0;
 			int totalLocalX = 0, totalLocalY = 0;
 			double aveLocalX, aveLocalY;
-			while(it.hasNext()){
+			//number of other peaks 1.0 to 1.5 spacings to the right of and below each peak,
+			//counted on the sorted x and y projections
+			int[] xs = new int[preMap.size()], ys = new int[preMap.size()];
+			for(int i = 0; i < preMap.size(); i++){
+				xs[i] = peakStore.getX(preMap.get(i));
+				ys[i] = peakStore.getY(preMap.get(i));
+			}
+			int[] localX = countInRange(xs, aveDistX*1.0, aveDistX*1.5);
+			int[] localY = countInRange(ys, aveDistY*1.0, aveDistY*1.5);
+			for(int i = 0; i < preMap.size(); i++){
 				counter++;
-				currentPeak = (Peak)it.next();
-				currentX  = currentPeak.getX();
-				currentY = currentPeak.getY();
-				it2 = preMap.iterator();
-				while(it2.hasNext()){
-					
-					tempPeak = (Peak)it2.next();
-					if((tempPeak.getX() - currentX) < aveDistX*1.5 && (tempPeak.getX() - currentX) > (aveDistX*1.0))
-						hasLocalX++;
-					if((tempPeak.getY() - currentY) < aveDistY*1.5 && (tempPeak.getY() - currentY) > (aveDistY*1.0))
-						hasLocalY++;
-				}
+				currentPeak = preMap.get(i);
+				hasLocalX = localX[i];
+				hasLocalY = localY[i];
 				totalLocalX += hasLocalX;
 				totalLocalY += hasLocalY;
 				aveLocalX = ((double)totalLocalX / (double)counter);
 				aveLocalY = ((double)totalLocalY / (double)counter);
 				
 				if(hasLocalX < (int)(aveLocalX*0.1))
-					gapBinsX[(int)((currentPeak.getX()-xMin)/aveDistX)]++;
+					gapBinsX[(int)((peakStore.getX(currentPeak)-xMin)/aveDistX)]++;
 				if(hasLocalY < (int)(aveLocalY*0.1))
-					gapBinsY[(int)((currentPeak.getY()-yMin)/aveDistY)]++;
+					gapBinsY[(int)((peakStore.getY(currentPeak)-yMin)/aveDistY)]++;
 				
 				hasLocalX = 0;
 				hasLocalY = 0;
 			}
 			
-			int xGaps = 0, yGaps = 0;
-			boolean adjacentHit = false;
-			for(int i = 1; i < xBins-1; i++){
-				if(gapBinsX[i] > 0 && !adjacentHit){
-					xGaps++;
-					System.out.println("xGap at " + i);
-					adjacentHit = true;
-				}
-				else
-					adjacentHit = false;
-			}
-			adjacentHit = false;
-			for(int j = 1; j < yBins-1; j++){
-				if(gapBinsY[j] > 0 && !adjacentHit){
-					yGaps++;
-					System.out.println("yGap at " + j);
-					adjacentHit = true;
-				}
-				else
-					adjacentHit = false;
-			}
+			columnGaps = gaps(gapBinsX, xBins, xMin, aveDistX);
+			rowGaps = gaps(gapBinsY, yBins, yMin, aveDistY);
+			int xGaps = columnGaps.length;
 			if(xGaps == 0)
 				detDimension = width;
 			else
 				detDimension = xCrystals / (xGaps + 1);
 			
 			detDimension = width;
-			System.out.println("xGaps = " + xGaps);
-			System.out.println("yGaps = " + yGaps);		
 			
 			return "successful";
 		}
 		
 		
-	}//end PeakMapper class
-	
-	
-	/**
-	 * Peak class - same as a Point, except with addition of crystal number, row, column, and a distanceTo
-	 * function used to find distance between peaks
-	 * @author Bill Hammond
-	 *
-	 */
-	public class Peak extends Point{
-
-		private int row;
-		private int col;
-		private int crystalNumber = -1;
-		private Peak neighbor;
-		private double nearest;
-		private int value = 0;
-		
-		public Peak(int x, int y){
-			super(x, y);
+		/**
+		 * @return for each value v of coords, how many values w satisfy low < w - v < high
+		 */
+		private int[] countInRange(int[] coords, double low, double high){
+			int[] counts = new int[coords.length];
+			if(!(high > low))
+				return counts;
+			int[] sorted = coords.clone();
+			Arrays.sort(sorted);
+			//w - v is an integer, so low < w - v < high means floor(low) < w - v < ceil(high)
+			long from = (long)Math.floor(low) + 1, to = (long)Math.ceil(high) - 1;
+			for(int i = 0; i < coords.length; i++)
+				counts[i] = Math.max(0, firstAbove(sorted, coords[i] + to) - firstAbove(sorted, coords[i] + from - 1));
+			return counts;
 		}
 		
-		public Peak(int x, int y, int value){
-			super(x, y);
-			this.value = value;
+		/**
+		 * @return index of the first value of sorted greater than v
+		 */
+		private int firstAbove(int[] sorted, long v){
+			int lo = 0, hi = sorted.length;
+			while(lo < hi){
+				int mid = (lo + hi) >>> 1;
+				if(sorted[mid] <= v)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			return lo;
 		}
 		
-		public void setValue(int value){
-			this.value = value;
+		/**
+		 * Gaps between pmts: a bin (one spacing wide) holding peaks with few neighbors
+		 * beyond them, skipping the bin after each gap found
+		 * @return position of each gap, in pixels from the image origin
+		 */
+		private double[] gaps(int[] gapBins, int bins, double origin, double spacing){
+			double[] found = new double[Math.max(bins, 0)];
+			int count = 0;
+			boolean adjacentHit = false;
+			for(int i = 1; i < bins-1; i++){
+				if(gapBins[i] > 0 && !adjacentHit){
+					found[count++] = origin + (i + 0.5)*spacing;
+					adjacentHit = true;
+				}
+				else
+					adjacentHit = false;
+			}
+			return Arrays.copyOf(found, count);
 		}
 		
-		public int getValue(){
-			return value;
+		/**
+		 * @return x of the middle of each gap between pmt columns found by the last characterize()
+		 */
+		public double[] getColumnGaps(){
+			return columnGaps;
 		}
 		
-		public void setRow(int row){
-			this.row = row;
+		/**
+		 * @return y of the middle of each gap between pmt rows found by the last characterize()
+		 */
+		public double[] getRowGaps(){
+			return rowGaps;
 		}
 		
-		public void setColumn(int col){
-			this.col = col;
-		}
 		
-		public int getRow(){
-			return row;
-		}
+	}//end PeakMapper class
+
+	
+	/**
+	 * The area one filter pass wrote and the peak size it used
+	 */
+	static class FilterPass{
 		
-		public int getColumn(){
-			return col;
-		}
+		final Rectangle area;
+		final int size;
 		
-		public void setCrystalNumber(int id){
-			crystalNumber = id;
+		FilterPass(Rectangle area, int size){
+			this.area = area;
+			this.size = size;
+		}
+	}
+	
+	
+	/**
+	 * A calibration stage, timed on the calling thread by an instance of the Stage Timings
+	 * plugin of the Kmax folder; it is reached by name so the CrystalMap plugins do not
+	 * depend on it, and nothing is timed if it is not installed.  Bytes allocated by the
+	 * Parallel workers taking part are counted with the stage.
+	 */
+	static class Stage{
+		
+		static final String TIMINGS = "Stage_Timings";
+		private static volatile Boolean installed;
+		private final PlugIn timing;	//null if not timed
+		private final AtomicLong workers = new AtomicLong();
+		private AtomicLong outer;
+		
+		Stage(String name){
+			Object plugin = installed() ? IJ.runPlugIn(TIMINGS, "start=[" + name + "]") : null;
+			timing = (plugin instanceof PlugIn) ? (PlugIn)plugin : null;
+			if(timing != null)
+				outer = Parallel.countAllocation(workers);
 		}
 		
-		public int getCrystalNumber(){
-			return crystalNumber;
+		/**
+		 * Record the stage; called once, on the thread that started it, in a finally block
+		 * so a stage that fails or is canceled ends too
+		 * @param items amount of work done, such as pixels or peaks
+		 * @param unit name of one item, plural
+		 */
+		void end(long items, String unit){
+			if(timing == null)
+				return;
+			Parallel.countAllocation(outer);
+			if(outer != null)	//an outer stage counts this one's workers too
+				outer.addAndGet(workers.get());
+			timing.run("end items=" + items + " unit=[" + unit + "] workers=" + workers.get());
 		}
 		
-		public Peak getNearestPeak(Set set){
-			Iterator it = set.iterator();
-			Peak tempPeak;
-			neighbor = null;
-			nearest = 99999999;
-			double dist;
-			while(it.hasNext()){
-				tempPeak = (Peak)it.next();
-				dist = distanceTo(tempPeak);
-				if(dist < nearest){
-					neighbor = tempPeak;
-					nearest = dist;
+		private static boolean installed(){
+			if(installed == null){
+				try{
+					Class.forName(TIMINGS, false, IJ.getClassLoader());
+					installed = Boolean.TRUE;
+				}catch(ClassNotFoundException e){
+					installed = Boolean.FALSE;
 				}
 			}
-			return neighbor;		
+			return installed.booleanValue();
 		}
-		
-		public double getNearestDist(Set set){
-			getNearestPeak(set);
-			return nearest;
-		}
-		
-		// return Euclidean distance between invoking point p and q
-		public double distanceTo(Point q) {
-			Point p = this;
-			double dx = p.x - q.x;
-			double dy = p.y - q.y;
-			return Math.sqrt(dx*dx + dy*dy);
-		}
-		
 	}
-
 }
 
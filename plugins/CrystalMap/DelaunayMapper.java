@@ -0,0 +1,246 @@
+import delaunay.DelaunayTriangulation;
+import delaunay.Pnt;
+import delaunay.Simplex;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+
+
+/**
+ * Enumerates the peaks of a crystal map through their Delaunay neighbor graph
+ * instead of rescanning the unmapped peaks for every crystal.
+ *
+ * The peaks are triangulated once with the bundled delaunay package, inserted along
+ * a Hilbert curve so each insertion's walk starts next to the new point.  Every
+ * peak then picks its nearest neighbor in each of the four directions (within 45
+ * degrees of the axis), and only mutual picks are kept as grid links.  A walk
+ * along the links from the top left peak gives every peak its row and column;
+ * the same links validate the result, since a peak reached with two different
+ * positions, a position used twice or one outside the array means the peaks do not
+ * form an xCrystals by yCrystals grid.
+ */
+public class DelaunayMapper {
+
+	public static final String SUCCESSFUL = "successful";
+
+	private static final int RIGHT = 0, LEFT = 1, DOWN = 2, UP = 3;
+
+	/**
+	 * Assign row, column and crystal number (row*xCrystals + column, row 0 at the top)
+	 * to every peak of peaks
+	 * @return SUCCESSFUL, or why the peaks could not be mapped; then nothing is assigned
+	 */
+	public static String map(PeakStore store, PeakStore.Subset peaks, int xCrystals, int yCrystals){
+		int n = peaks.size();
+		if(n != xCrystals*yCrystals)
+			return "Expected " + xCrystals*yCrystals + " peaks, found " + n;
+		if(n == 0)
+			return SUCCESSFUL;
+		int[] x = new int[n], y = new int[n];
+		for(int i = 0; i < n; i++){
+			x[i] = store.getX(peaks.get(i));
+			y[i] = store.getY(peaks.get(i));
+		}
+
+		int[][] adjacency = neighbors(x, y, n);
+		if(adjacency == null)
+			return "Two peaks share the same position";
+		int[][] link = links(x, y, adjacency);
+
+		//walk the links from the top left peak
+		int start = 0;
+		for(int i = 1; i < n; i++){
+			if(x[i] + y[i] < x[start] + y[start])
+				start = i;
+		}
+		int[] row = new int[n], col = new int[n];
+		boolean[] placed = new boolean[n];
+		int[] queue = new int[n];
+		int head = 0, tail = 0;
+		queue[tail++] = start;
+		placed[start] = true;
+		int minRow = 0, minCol = 0;
+		while(head < tail){
+			int i = queue[head++];
+			Parallel.checkpoint(head, n);
+			for(int d = 0; d < 4; d++){
+				int j = link[d][i];
+				if(j < 0)
+					continue;
+				int r = row[i] + ((d == DOWN) ? 1 : (d == UP) ? -1 : 0);
+				int c = col[i] + ((d == RIGHT) ? 1 : (d == LEFT) ? -1 : 0);
+				if(placed[j]){
+					if(row[j] != r || col[j] != c)
+						return "Peaks near (" + x[j] + ", " + y[j] + ") do not form a grid";
+					continue;
+				}
+				placed[j] = true;
+				row[j] = r;
+				col[j] = c;
+				minRow = Math.min(minRow, r);
+				minCol = Math.min(minCol, c);
+				queue[tail++] = j;
+			}
+		}
+		if(tail < n){
+			for(int i = 0; i < n; i++){
+				if(!placed[i])
+					return "Peak at (" + x[i] + ", " + y[i] + ") is not linked to its neighbors";
+			}
+		}
+
+		//every position of the array must be used exactly once
+		int[] owner = new int[n];
+		Arrays.fill(owner, -1);
+		for(int i = 0; i < n; i++){
+			int r = row[i] - minRow, c = col[i] - minCol;
+			if(r >= yCrystals || c >= xCrystals)
+				return "Peaks span more than " + xCrystals + " columns by " + yCrystals + " rows near (" + x[i] + ", " + y[i] + ")";
+			int id = r*xCrystals + c;
+			if(owner[id] >= 0)
+				return "Peaks at (" + x[i] + ", " + y[i] + ") and (" + x[owner[id]] + ", " + y[owner[id]] + ") map to the same crystal";
+			owner[id] = i;
+		}
+		for(int i = 0; i < n; i++){
+			int h = peaks.get(i);
+			store.setRow(h, row[i] - minRow);
+			store.setColumn(h, col[i] - minCol);
+			store.setCrystalNumber(h, (row[i] - minRow)*xCrystals + col[i] - minCol);
+		}
+		return SUCCESSFUL;
+	}
+
+	/**
+	 * @return Delaunay neighbors of each point, or null if two points coincide
+	 */
+	static int[][] neighbors(int[] x, int[] y, int n){
+		int maxX = 0, maxY = 0;
+		for(int i = 0; i < n; i++){
+			maxX = Math.max(maxX, Math.abs(x[i]));
+			maxY = Math.max(maxY, Math.abs(y[i]));
+		}
+		double inf = 2.0*(maxX + maxY) + 16;
+		Simplex initial = new Simplex(new Pnt[]{new Pnt(-inf, -inf), new Pnt(-inf, 5*inf), new Pnt(5*inf, -inf)});
+		DelaunayTriangulation triangulation = new DelaunayTriangulation(initial);
+
+		//insert along a Hilbert curve so each point is located from its predecessor
+		long[] order = new long[n];
+		int bits = 1;
+		while((1 << bits) <= Math.max(maxX, maxY))
+			bits++;
+		for(int i = 0; i < n; i++)
+			order[i] = (hilbert(x[i], y[i], bits) << 32) | i;
+		Arrays.sort(order);
+		HashMap<Pnt, Integer> index = new HashMap<Pnt, Integer>(2*n);
+		for(int k = 0; k < n; k++){
+			Parallel.checkpoint(k, n);
+			int i = (int)order[k];
+			Pnt p = new Pnt(x[i], y[i]);
+			if(index.put(p, Integer.valueOf(i)) != null)
+				return null;
+			triangulation.delaunayPlace(p);
+		}
+
+		//each edge once, as (low << 32 | high)
+		long[] edges = new long[6*n];
+		int count = 0;
+		int[] corner = new int[3];
+		for(Iterator<?> it = triangulation.iterator(); it.hasNext(); ){
+			Simplex triangle = (Simplex)it.next();
+			int m = 0;
+			for(Iterator<?> v = triangle.iterator(); v.hasNext(); ){
+				Integer i = index.get(v.next());
+				corner[m++] = (i == null) ? -1 : i.intValue();
+			}
+			for(int a = 0; a < 3; a++){
+				int i = corner[a], j = corner[(a + 1) % 3];
+				if(i < 0 || j < 0)
+					continue;
+				if(count == edges.length)
+					edges = Arrays.copyOf(edges, 2*count);
+				edges[count++] = ((long)Math.min(i, j) << 32) | Math.max(i, j);
+			}
+		}
+		Arrays.sort(edges, 0, count);
+		int[] degree = new int[n];
+		int unique = 0;
+		for(int e = 0; e < count; e++){
+			if(e > 0 && edges[e] == edges[e - 1])
+				continue;
+			edges[unique++] = edges[e];
+			degree[(int)(edges[e] >> 32)]++;
+			degree[(int)edges[e]]++;
+		}
+		int[][] adjacency = new int[n][];
+		for(int i = 0; i < n; i++)
+			adjacency[i] = new int[degree[i]];
+		Arrays.fill(degree, 0);
+		for(int e = 0; e < unique; e++){
+			int i = (int)(edges[e] >> 32), j = (int)edges[e];
+			adjacency[i][degree[i]++] = j;
+			adjacency[j][degree[j]++] = i;
+		}
+		return adjacency;
+	}
+
+	/**
+	 * @return for each direction, the mutual nearest neighbor of each point in that
+	 * direction, or -1
+	 */
+	static int[][] links(int[] x, int[] y, int[][] adjacency){
+		int n = x.length;
+		int[][] best = new int[4][n];
+		for(int d = 0; d < 4; d++)
+			Arrays.fill(best[d], -1);
+		for(int i = 0; i < n; i++){
+			long[] distance = {Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE};
+			for(int k = 0; k < adjacency[i].length; k++){
+				int j = adjacency[i][k];
+				long dx = x[j] - x[i], dy = y[j] - y[i];
+				int d;
+				if(Math.abs(dx) >= Math.abs(dy))
+					d = (dx > 0) ? RIGHT : LEFT;
+				else
+					d = (dy > 0) ? DOWN : UP;
+				long dist = dx*dx + dy*dy;
+				if(dist < distance[d]){
+					distance[d] = dist;
+					best[d][i] = j;
+				}
+			}
+		}
+		int[][] link = new int[4][n];
+		for(int d = 0; d < 4; d++){
+			int opposite = d ^ 1;
+			for(int i = 0; i < n; i++){
+				int j = best[d][i];
+				link[d][i] = (j >= 0 && best[opposite][j] == i) ? j : -1;
+			}
+		}
+		return link;
+	}
+
+	/**
+	 * @return position of (x, y) along a Hilbert curve filling a square of side 2^bits
+	 */
+	static long hilbert(int x, int y, int bits){
+		int side = 1 << bits;
+		long d = 0;
+		for(int s = side >> 1; s > 0; s >>= 1){
+			int rx = ((x & s) > 0) ? 1 : 0;
+			int ry = ((y & s) > 0) ? 1 : 0;
+			d += (long)s * s * ((3 * rx) ^ ry);
+			if(ry == 0){
+				if(rx == 1){
+					x = side - 1 - x;
+					y = side - 1 - y;
+				}
+				int t = x;
+				x = y;
+				y = t;
+			}
+		}
+		return d;
+	}
+}
@@ -0,0 +1,115 @@
+/**
+ * Exact Euclidean distance transform with feature propagation: for every pixel of
+ * an image, the nearest of a set of seed points, in O(width*height) whatever the
+ * number of seeds.
+ *
+ * The first pass finds the nearest seed within each column; the second takes, for
+ * each row, the lower envelope of the parabolas (x - x')^2 + dy(x')^2 of the column
+ * results (Felzenszwalb and Huttenlocher, "Distance Transforms of Sampled
+ * Functions").  Columns and then rows are independent and run on the
+ * {@link Parallel} pool.
+ */
+public class DistanceTransform {
+
+	/**
+	 * @param width
+	 * @param height
+	 * @param seedX
+	 * @param seedY
+	 * @param seeds number of seeds, each of which must lie in the image
+	 * @return index of the seed nearest each pixel, row by row, or -1 if there are no seeds.
+	 * A pixel holding two seeds keeps the later one.
+	 * @throws IllegalArgumentException if a seed lies outside the image
+	 */
+	public static int[] nearest(final int width, final int height, final int[] seedX, final int[] seedY, int seeds){
+		for(int k = 0; k < seeds; k++){
+			if(seedX[k] < 0 || seedX[k] >= width || seedY[k] < 0 || seedY[k] >= height)
+				throw new IllegalArgumentException("seed " + k + " at (" + seedX[k] + ", " + seedY[k]
+						+ ") is outside the " + width + "x" + height + " image");
+		}
+		final int[] feature = new int[width * height];
+		java.util.Arrays.fill(feature, -1);
+		for(int k = 0; k < seeds; k++)
+			feature[seedY[k]*width + seedX[k]] = k;
+
+		//nearest seed in each column
+		Parallel.forRange(0, width, 16, new Parallel.Range(){
+			public void run(int from, int to){
+				for(int x = from; x < to; x++)
+					columns(feature, width, height, x, seedY);
+			}
+		});
+
+		//nearest seed over the whole image, one row at a time
+		Parallel.forRange(0, height, 16, new Parallel.Range(){
+			public void run(int from, int to){
+				int[] site = new int[width];
+				long[] f = new long[width];
+				double[] edge = new double[width + 1];
+				int[] row = new int[width];
+				for(int y = from; y < to; y++)
+					row(feature, width, y, seedY, site, f, edge, row);
+			}
+		});
+		return feature;
+	}
+
+	/**
+	 * replace the seeds of column x by the seed nearest each pixel of the column
+	 */
+	static void columns(int[] feature, int width, int height, int x, int[] seedY){
+		int last = -1;
+		for(int y = 0; y < height; y++){
+			int k = feature[y*width + x];
+			if(k >= 0)
+				last = k;
+			else
+				feature[y*width + x] = last;
+		}
+		last = -1;
+		for(int y = height - 1; y >= 0; y--){
+			int i = y*width + x;
+			int k = feature[i];
+			if(k >= 0 && seedY[k] == y){
+				last = k;
+				continue;
+			}
+			if(last >= 0 && (k < 0 || seedY[last] - y < y - seedY[k]))
+				feature[i] = last;
+		}
+	}
+
+	/**
+	 * lower envelope of the parabolas of row y; site, f, edge and row are scratch
+	 */
+	static void row(int[] feature, int width, int y, int[] seedY, int[] site, long[] f, double[] edge, int[] row){
+		int offset = y*width;
+		int n = -1;
+		for(int x = 0; x < width; x++){
+			int k = feature[offset + x];
+			row[x] = k;
+			if(k < 0)
+				continue;
+			long dy = seedY[k] - y;
+			long fx = dy*dy + (long)x*x;	//parabola with the x^2 term folded in
+			while(n >= 0){
+				double s = (fx - f[n]) / (2.0*(x - site[n]));
+				if(s > edge[n])
+					break;
+				n--;
+			}
+			n++;
+			site[n] = x;
+			f[n] = fx;
+			edge[n] = (n == 0) ? Double.NEGATIVE_INFINITY : (fx - f[n - 1]) / (2.0*(x - site[n - 1]));
+		}
+		if(n < 0)
+			return;
+		int j = 0;
+		for(int x = 0; x < width; x++){
+			while(j < n && edge[j + 1] < x)
+				j++;
+			feature[offset + x] = row[site[j]];
+		}
+	}
+}
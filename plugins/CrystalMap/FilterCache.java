@@ -0,0 +1,145 @@
+import java.awt.Rectangle;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Least recently used cache of filter results, bounded by the number of bytes
+ * held in the cached arrays rather than by the number of entries.  An entry holds
+ * the two terms of one filter pass (see {@link FilterEngine#normal}): the plain
+ * sin(x)/x correlation and the box sum of the roi, so any threshold can be applied
+ * to it with one linear pass.  Keys name their source image by a number from
+ * newSource() rather than hold it, so the cache keeps no image alive beyond the
+ * bytes it counts.
+ */
+public class FilterCache {
+
+	private static final AtomicLong sources = new AtomicLong();
+
+	private final LinkedHashMap<Key, float[][]> entries = new LinkedHashMap<Key, float[][]>(16, 0.75f, true);
+	private long budget;
+	private long bytes = 0;
+	private int hits = 0, misses = 0;
+
+	/**
+	 * @param budget largest number of bytes of cached pixels
+	 */
+	public FilterCache(long budget){
+		this.budget = budget;
+	}
+
+	/**
+	 * @return cached pixels for key, or null; counts a hit or a miss
+	 */
+	public synchronized float[][] get(Key key){
+		float[][] data = entries.get(key);
+		if(data == null)
+			misses++;
+		else
+			hits++;
+		return data;
+	}
+
+	/**
+	 * Store data under key, evicting the least recently used entries until the total
+	 * fits the budget.  Arrays larger than the whole budget are not stored.
+	 */
+	public synchronized void put(Key key, float[][] data){
+		long size = sizeOf(data);
+		if(size > budget)
+			return;
+		float[][] old = entries.put(key, data);
+		if(old != null)
+			bytes -= sizeOf(old);
+		bytes += size;
+		trim();
+	}
+
+	/**
+	 * @return a number for a source image no other image has had; a new one is
+	 * needed whenever the pixels of the image change
+	 */
+	public static long newSource(){
+		return sources.incrementAndGet();
+	}
+
+	public synchronized void setBudget(long budget){
+		this.budget = budget;
+		trim();
+	}
+
+	public synchronized void clear(){
+		entries.clear();
+		bytes = 0;
+	}
+
+	public synchronized int getHits(){
+		return hits;
+	}
+
+	public synchronized int getMisses(){
+		return misses;
+	}
+
+	public synchronized long getBytes(){
+		return bytes;
+	}
+
+	public synchronized String toString(){
+		return hits + " hits, " + misses + " misses, " + entries.size() + " entries, "
+				+ (bytes >> 20) + " of " + (budget >> 20) + " MB";
+	}
+
+	private void trim(){
+		Iterator<Map.Entry<Key, float[][]>> it = entries.entrySet().iterator();
+		while(bytes > budget && it.hasNext()){
+			bytes -= sizeOf(it.next().getValue());
+			it.remove();
+		}
+	}
+
+	private static long sizeOf(float[][] data){
+		long size = 0;
+		for(int i = 0; i < data.length; i++)
+			size += 4L * data[i].length;
+		return size;
+	}
+
+
+	/**
+	 * Identifies one filter pass: the source image (see newSource) and its
+	 * dimensions, the roi bounds, and the peak size.  The threshold is applied
+	 * after the lookup.
+	 */
+	public static class Key{
+
+		final long source;
+		final int width, height;
+		final Rectangle roi;
+		final int peakSize;
+
+		public Key(long source, int width, int height, Rectangle roi, int peakSize){
+			this.source = source;
+			this.width = width;
+			this.height = height;
+			this.roi = new Rectangle(roi);
+			this.peakSize = peakSize;
+		}
+
+		public boolean equals(Object o){
+			if(!(o instanceof Key))
+				return false;
+			Key k = (Key)o;
+			return source == k.source && width == k.width && height == k.height
+					&& roi.equals(k.roi) && peakSize == k.peakSize;
+		}
+
+		public int hashCode(){
+			int h = (int)(source ^ (source >>> 32));
+			h = (h*31 + width)*31 + height;
+			return (h*31 + roi.hashCode())*31 + peakSize;
+		}
+	}
+}
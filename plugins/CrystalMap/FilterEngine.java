@@ -0,0 +1,664 @@
+import java.awt.Rectangle;
+
+
+/**
+ * Correlates a flood image with the rotated sin(x)/x peak filter.  Three backends
+ * are available: a direct (2l+1)^2 sum, a low rank separable approximation of the
+ * kernel and an overlap-save FFT.  {@link #create(double[][], Rectangle)} picks the
+ * cheapest one for the kernel radius and the size of the area to filter.
+ *
+ * All backends read a row-major <code>float[]</code> and only write the pixels of
+ * <code>area</code>, whose filter window must lie completely inside the image.
+ * The work is split across the {@link Parallel} pool so that every pixel is
+ * computed with the same arithmetic whatever the number of threads.
+ */
+public abstract class FilterEngine {
+
+	public static final String DIRECT = "direct";
+	public static final String SEPARABLE = "separable";
+	public static final String FFT = "fft";
+
+	//largest error of the separable approximation, relative to the L1 norm of the kernel
+	static final double SEPARABLE_TOLERANCE = 1.0e-3;
+
+	final double[][] kernel;
+	final int l;
+
+	FilterEngine(double[][] kernel){
+		this.kernel = kernel;
+		this.l = (kernel.length - 1) / 2;
+	}
+
+	/**
+	 * @return short name of the backend, one of DIRECT, SEPARABLE or FFT
+	 */
+	public abstract String getName();
+
+	/**
+	 * @return name of the backend plus any parameters it chose, for the status bar
+	 */
+	public String describe(){
+		return getName();
+	}
+
+	/**
+	 * Write the correlation of src with the kernel into dst for every pixel of area
+	 * @param src source pixels, width*height
+	 * @param width
+	 * @param height
+	 * @param area pixels to compute; see {@link #filterArea}
+	 * @param dst destination pixels, width*height
+	 */
+	public abstract void convolve(float[] src, int width, int height, Rectangle area, float[] dst);
+
+	/**
+	 * rough number of floating point operations needed to filter area
+	 */
+	abstract double cost(Rectangle area);
+
+
+	/**
+	 * Build the filter based on rotation of the function sin(x)/x, dropped by the
+	 * threshold so that flat fields produce slightly less than zero
+	 * @param peakSize diameter of the filter in pixels
+	 * @param threshold percentage to drop the curve below its mean
+	 * @return kernel indexed [x][y], (peakSize-1)/2 is the center
+	 */
+	public static double[][] sincKernel(int peakSize, int threshold){
+		double[][] sinxFilter = sincKernel(peakSize);
+		double normal = normal(sinxFilter, threshold);
+		for (int i = 0; i < sinxFilter.length; i++) {
+			for (int j = 0; j < sinxFilter.length; j++) {
+				sinxFilter[i][j] -= normal;
+			}
+		}
+		return sinxFilter;
+	}
+
+	/**
+	 * Build the filter based on rotation of the function sin(x)/x, without the
+	 * threshold drop
+	 * @param peakSize diameter of the filter in pixels
+	 * @return kernel indexed [x][y], (peakSize-1)/2 is the center
+	 */
+	public static double[][] sincKernel(int peakSize){
+		int l = (peakSize - 1) / 2;
+		double[][] sinxFilter = new double[l * 2 + 1][l * 2 + 1];
+		double d;
+
+		for (int i = -l; i <= l; i++) {
+			for (int j = -l; j <= l; j++) {
+				d = Math.sqrt(i*i + j*j);
+				if (d == 0) {
+					sinxFilter[i + l][j + l] = 1;
+				}
+				else {
+					sinxFilter[i + l][j + l] = (Math.sin(Math.PI * d / l) / (Math.PI * d / l));
+				}
+			}
+		}
+		return sinxFilter;
+	}
+
+	/**
+	 * The constant subtracted from every tap of the sin(x)/x kernel: its mean, raised
+	 * by threshold percent.  Since the drop is constant, the thresholded filter equals
+	 * the plain sin(x)/x filter minus normal times the box sum over the window.
+	 */
+	public static double normal(double[][] sinxFilter, int threshold){
+		double sum = 0;
+		for (int i = 0; i < sinxFilter.length; i++) {
+			for (int j = 0; j < sinxFilter.length; j++) {
+				sum += sinxFilter[i][j];
+			}
+		}
+		//Normalize so that flat fields will produce slightly less than zero
+		sum = sum / (sinxFilter.length * sinxFilter.length);
+		return sum * ((threshold / 100.0) + 1);		//Drop curve a further x% lower
+	}
+
+	/**
+	 * Sum of src over the (2l+1)^2 window around every pixel of area
+	 * @param dst area.width*area.height sums, row by row
+	 */
+	public static void boxSum(final float[] src, final int width, final int l, final Rectangle area, final float[] dst){
+		//each row's running sum starts at area.x, and the vertical sum is taken
+		//directly, so the result does not depend on how the rows are split
+		Parallel.forRange(area.y, area.y + area.height, Math.max(16, 4*l), new Parallel.Range(){
+			public void run(int from, int to){
+				int w = area.width;
+				int rows = to - from + 2*l;
+				double[] horizontal = new double[w * rows];
+				for(int r = 0; r < rows; r++){
+					int offset = (from - l + r)*width + area.x;
+					double sum = 0;
+					for(int i = -l; i <= l; i++)
+						sum += src[offset + i];
+					horizontal[r*w] = sum;
+					for(int x = 1; x < w; x++){
+						sum += src[offset + x + l] - src[offset + x - l - 1];
+						horizontal[r*w + x] = sum;
+					}
+				}
+				for(int y = from; y < to; y++){
+					int r = y - from;
+					for(int x = 0; x < w; x++){
+						double sum = 0;
+						for(int j = 0; j <= 2*l; j++)
+							sum += horizontal[(r + j)*w + x];
+						dst[(y - area.y)*w + x] = (float)sum;
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Pixels of bounds that are far enough from the image edge for the whole filter
+	 * window to fit; may be empty
+	 */
+	public static Rectangle filterArea(Rectangle bounds, int l, int width, int height){
+		int x0 = Math.max(bounds.x + l, l);
+		int y0 = Math.max(bounds.y + l, l);
+		int x1 = Math.min(bounds.x + bounds.width - l, width - 1 - l);
+		int y1 = Math.min(bounds.y + bounds.height - l, height - 1 - l);
+		return new Rectangle(x0, y0, Math.max(0, x1 - x0 + 1), Math.max(0, y1 - y0 + 1));
+	}
+
+	/**
+	 * Choose the cheapest backend for this kernel and area
+	 */
+	public static FilterEngine create(double[][] kernel, Rectangle area){
+		FilterEngine best = new Direct(kernel);
+		if(kernel.length <= 5 || area.isEmpty())
+			return best;
+		FilterEngine[] candidates = {new Separable(kernel), new Fft(kernel)};
+		double min = best.cost(area);
+		for(int i = 0; i < candidates.length; i++){
+			double c = candidates[i].cost(area);
+			if(c < min){
+				min = c;
+				best = candidates[i];
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Create a specific backend by name
+	 */
+	public static FilterEngine create(String name, double[][] kernel){
+		return create(name, kernel, vectorSupported());
+	}
+
+	/**
+	 * Create a specific backend by name, choosing the scalar or vector direct kernel
+	 */
+	public static FilterEngine create(String name, double[][] kernel, boolean vector){
+		if(SEPARABLE.equals(name))
+			return new Separable(kernel);
+		if(FFT.equals(name))
+			return new Fft(kernel);
+		return new Direct(kernel, vector);
+	}
+
+
+	/**
+	 * The full (2l+1)^2 sum at every pixel, read straight from the pixel array with
+	 * the kernel flattened into a float[] by rows.  The scalar variant sums each
+	 * kernel row in runs of four taps into four accumulators.  The vector variant
+	 * instead sweeps each tap across a whole span of output pixels (acc[x] +=
+	 * src[x+i] * tap), a loop that HotSpot's SuperWord pass turns into SIMD code; it
+	 * is only used where {@link #vectorSupported()} says the JIT will do that.
+	 */
+	static class Direct extends FilterEngine{
+
+		final float[] taps;	//taps[j*n + i] = kernel[i][j]
+		final boolean vector;
+
+		Direct(double[][] kernel){
+			this(kernel, vectorSupported());
+		}
+
+		Direct(double[][] kernel, boolean vector){
+			super(kernel);
+			this.vector = vector;
+			int n = kernel.length;
+			taps = new float[n * n];
+			for(int i = 0; i < n; i++)
+				for(int j = 0; j < n; j++)
+					taps[j*n + i] = (float)kernel[i][j];
+		}
+
+		public String getName(){
+			return DIRECT;
+		}
+
+		public String describe(){
+			return vector ? DIRECT + ", simd" : DIRECT;
+		}
+
+		double cost(Rectangle area){
+			double n = kernel.length;
+			return 2.0 * n * n * area.width * area.height / (vector ? 4 : 1);
+		}
+
+		public void convolve(final float[] src, final int width, int height, final Rectangle area, final float[] dst){
+			Parallel.forRange(area.y, area.y + area.height, 8, new Parallel.Range(){
+				public void run(int from, int to){
+					if(vector)
+						convolveSpans(src, width, area.x, area.width, from, to, dst);
+					else
+						convolveRows(src, width, area.x, area.width, from, to, dst);
+				}
+			});
+		}
+
+		void convolveRows(float[] src, int width, int x0, int w, int from, int to, float[] dst){
+			int n = kernel.length;
+			int unrolled = n & ~3;
+			float[] taps = this.taps;
+			for (int y = from; y < to; y++) {
+				for (int x = x0; x < x0 + w; x++) {
+					float a0 = 0.0f, a1 = 0.0f, a2 = 0.0f, a3 = 0.0f;
+					for (int j = 0; j < n; j++) {
+						int o = (y + j - l)*width + x - l;
+						int t = j*n;
+						int i = 0;
+						for (; i < unrolled; i += 4) {
+							a0 += src[o + i] * taps[t + i];
+							a1 += src[o + i + 1] * taps[t + i + 1];
+							a2 += src[o + i + 2] * taps[t + i + 2];
+							a3 += src[o + i + 3] * taps[t + i + 3];
+						}
+						for (; i < n; i++)
+							a0 += src[o + i] * taps[t + i];
+					}
+					dst[y*width + x] = (a0 + a1) + (a2 + a3);
+				}
+			}
+		}
+
+		void convolveSpans(float[] src, int width, int x0, int w, int from, int to, float[] dst){
+			int n = kernel.length;
+			float[] taps = this.taps;
+			float[] acc = new float[w];
+			for (int y = from; y < to; y++) {
+				java.util.Arrays.fill(acc, 0.0f);
+				for (int j = 0; j < n; j++) {
+					int row = (y + j - l)*width + x0 - l;
+					for (int i = 0; i < n; i++) {
+						float tap = taps[j*n + i];
+						int o = row + i;
+						for (int x = 0; x < w; x++)
+							acc[x] += src[o + x] * tap;
+					}
+				}
+				System.arraycopy(acc, 0, dst, y*width + x0, w);
+			}
+		}
+	}
+
+	private static Boolean vector;
+
+	/**
+	 * @return true if this is a HotSpot VM that auto-vectorizes loops (UseSuperWord)
+	 * with vector registers of at least four floats
+	 */
+	public static synchronized boolean vectorSupported(){
+		if(vector == null){
+			boolean supported = false;
+			try{
+				com.sun.management.HotSpotDiagnosticMXBean hotspot = java.lang.management.ManagementFactory.getPlatformMXBean(
+						com.sun.management.HotSpotDiagnosticMXBean.class);
+				supported = "true".equals(hotspot.getVMOption("UseSuperWord").getValue())
+						&& Integer.parseInt(hotspot.getVMOption("MaxVectorSize").getValue()) >= 16;
+			}catch(Throwable e){
+				//not HotSpot, or the options are not there: stay scalar
+			}
+			vector = Boolean.valueOf(supported);
+		}
+		return vector.booleanValue();
+	}
+
+
+	/**
+	 * The kernel is symmetric, so it is written as a sum of outer products of its
+	 * eigenvectors, K = sum(lambda_k * v_k * v_k'), and the terms with the smallest
+	 * eigenvalues are dropped.  Each remaining term is a horizontal pass followed by a
+	 * vertical pass.  The rank is the smallest one for which
+	 * sum(|lambda_k| * |v_k|_1^2) over the dropped terms, a bound on the L1 norm of the
+	 * kernel error, stays below SEPARABLE_TOLERANCE of the L1 norm of the kernel.
+	 */
+	static class Separable extends FilterEngine{
+
+		final int rank;
+		final double[][] vectors;	//[term][tap]
+		final double[] values;
+
+		Separable(double[][] kernel){
+			super(kernel);
+			int n = kernel.length;
+			double[][] a = new double[n][n];
+			double[][] v = new double[n][n];
+			double norm = 0;
+			for(int i = 0; i < n; i++){
+				for(int j = 0; j < n; j++){
+					a[i][j] = kernel[i][j];
+					norm += Math.abs(kernel[i][j]);
+				}
+				v[i][i] = 1;
+			}
+			jacobi(a, v);
+
+			//sort terms by decreasing |lambda|
+			Integer[] order = new Integer[n];
+			final double[] lambda = new double[n];
+			for(int k = 0; k < n; k++){
+				order[k] = new Integer(k);
+				lambda[k] = a[k][k];
+			}
+			java.util.Arrays.sort(order, new java.util.Comparator<Integer>(){
+				public int compare(Integer p, Integer q){
+					return Double.compare(Math.abs(lambda[q.intValue()]), Math.abs(lambda[p.intValue()]));
+				}
+			});
+
+			//error bound of dropping every term from k on
+			double[] tail = new double[n + 1];
+			for(int k = n - 1; k >= 0; k--){
+				int t = order[k].intValue();
+				double l1 = 0;
+				for(int i = 0; i < n; i++)
+					l1 += Math.abs(v[i][t]);
+				tail[k] = tail[k + 1] + Math.abs(lambda[t]) * l1 * l1;
+			}
+			int r = n;
+			while(r > 1 && tail[r - 1] <= SEPARABLE_TOLERANCE * norm)
+				r--;
+			rank = r;
+			vectors = new double[rank][n];
+			values = new double[rank];
+			for(int k = 0; k < rank; k++){
+				int t = order[k].intValue();
+				values[k] = lambda[t];
+				for(int i = 0; i < n; i++)
+					vectors[k][i] = v[i][t];
+			}
+		}
+
+		public String getName(){
+			return SEPARABLE;
+		}
+
+		public String describe(){
+			return SEPARABLE + ", rank " + rank;
+		}
+
+		double cost(Rectangle area){
+			//horizontal pass runs over 2l extra rows
+			double n = kernel.length;
+			return 2.0 * n * rank * ((double)area.width * (area.height + 2*l) + (double)area.width * area.height);
+		}
+
+		public void convolve(final float[] src, final int width, int height, final Rectangle area, final float[] dst){
+			//bands of at least 4l rows keep the 2l extra rows of the horizontal pass cheap
+			Parallel.forRange(area.y, area.y + area.height, Math.max(16, 4*l), new Parallel.Range(){
+				public void run(int from, int to){
+					convolveRows(src, width, area.x, area.width, from, to, dst);
+				}
+			});
+		}
+
+		/**
+		 * filter rows [from, to) of the columns [x0, x0+w)
+		 */
+		void convolveRows(float[] src, int width, int x0, int w, int from, int to, float[] dst){
+			int n = kernel.length;
+			int height = to - from;
+			int rows = height + 2*l;
+			int top = from - l;
+			double[] horizontal = new double[w * rows];
+			double[] sum = new double[w * height];
+			double temp;
+			for(int k = 0; k < rank; k++){
+				double[] vec = vectors[k];
+				for(int r = 0; r < rows; r++){
+					int offset = (top + r)*width + x0 - l;
+					for(int x = 0; x < w; x++){
+						temp = 0;
+						for(int i = 0; i < n; i++)
+							temp += src[offset + x + i] * vec[i];
+						horizontal[r*w + x] = temp;
+					}
+				}
+				for(int y = 0; y < height; y++){
+					for(int x = 0; x < w; x++){
+						temp = 0;
+						for(int j = 0; j < n; j++)
+							temp += horizontal[(y + j)*w + x] * vec[j];
+						sum[y*w + x] += values[k] * temp;
+					}
+				}
+			}
+			for(int y = 0; y < height; y++)
+				for(int x = 0; x < w; x++)
+					dst[(from + y)*width + x0 + x] = (float)sum[y*w + x];
+		}
+
+		/**
+		 * cyclic Jacobi rotations; on return a is diagonal (the eigenvalues) and the
+		 * columns of v are the eigenvectors
+		 */
+		static void jacobi(double[][] a, double[][] v){
+			int n = a.length;
+			for(int sweep = 0; sweep < 100; sweep++){
+				double off = 0;
+				for(int p = 0; p < n; p++)
+					for(int q = p + 1; q < n; q++)
+						off += a[p][q] * a[p][q];
+				if(off < 1.0e-22)
+					return;
+				for(int p = 0; p < n; p++){
+					for(int q = p + 1; q < n; q++){
+						if(Math.abs(a[p][q]) < 1.0e-300)
+							continue;
+						double theta = (a[q][q] - a[p][p]) / (2 * a[p][q]);
+						double t = (theta >= 0 ? 1 : -1) / (Math.abs(theta) + Math.sqrt(theta*theta + 1));
+						double c = 1 / Math.sqrt(t*t + 1);
+						double s = t * c;
+						for(int k = 0; k < n; k++){
+							double akp = a[k][p];
+							double akq = a[k][q];
+							a[k][p] = c*akp - s*akq;
+							a[k][q] = s*akp + c*akq;
+						}
+						for(int k = 0; k < n; k++){
+							double apk = a[p][k];
+							double aqk = a[q][k];
+							a[p][k] = c*apk - s*aqk;
+							a[q][k] = s*apk + c*aqk;
+						}
+						for(int k = 0; k < n; k++){
+							double vkp = v[k][p];
+							double vkq = v[k][q];
+							v[k][p] = c*vkp - s*vkq;
+							v[k][q] = s*vkp + c*vkq;
+						}
+					}
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Overlap-save FFT correlation over square power of two tiles.  Each tile yields
+	 * (size-2l)^2 output pixels; two tiles are packed into the real and imaginary parts
+	 * of one transform since the kernel is real.
+	 */
+	static class Fft extends FilterEngine{
+
+		Fft(double[][] kernel){
+			super(kernel);
+		}
+
+		public String getName(){
+			return FFT;
+		}
+
+		public String describe(){
+			return FFT + ", " + tileSize() + "x" + tileSize() + " tiles";
+		}
+
+		int tileSize(){
+			int size = 64;
+			while(size < 4 * kernel.length && size < 1024)
+				size *= 2;
+			return size;
+		}
+
+		double cost(Rectangle area){
+			int size = tileSize();
+			int step = size - 2*l;
+			double tiles = Math.ceil((double)area.width / step) * Math.ceil((double)area.height / step);
+			double log = Math.log(size) / Math.log(2);
+			//forward and inverse 2d transforms (~5 flops per point per level), shared by 2 tiles
+			return tiles * 0.5 * (2 * 2 * 5.0 * size * size * log + 6.0 * size * size);
+		}
+
+		public void convolve(final float[] src, final int width, final int height, final Rectangle area, final float[] dst){
+			final int size = tileSize();
+			final int step = size - 2*l;
+			int n = kernel.length;
+
+			//spectrum of the mirrored kernel: correlation by convolution
+			final double[] kre = new double[size * size];
+			final double[] kim = new double[size * size];
+			for(int i = 0; i < n; i++)
+				for(int j = 0; j < n; j++)
+					kre[((l - j + size) % size)*size + (l - i + size) % size] = kernel[i][j];
+			fft2d(kre, kim, size, false);
+
+			//tiles are always paired (0,1), (2,3)... so the result does not depend on the thread count
+			final int tilesX = (area.width + step - 1) / step;
+			int tilesY = (area.height + step - 1) / step;
+			final int tiles = tilesX * tilesY;
+			Parallel.forRange(0, (tiles + 1) / 2, 1, new Parallel.Range(){
+				public void run(int from, int to){
+					double[] re = new double[size * size];
+					double[] im = new double[size * size];
+					for(int pair = from; pair < to; pair++){
+						int t = 2 * pair;
+						java.util.Arrays.fill(re, 0);
+						java.util.Arrays.fill(im, 0);
+						loadTile(src, width, height, area, t, tilesX, step, size, re);
+						if(t + 1 < tiles)
+							loadTile(src, width, height, area, t + 1, tilesX, step, size, im);
+						fft2d(re, im, size, false);
+						for(int k = 0; k < size * size; k++){
+							double r = re[k]*kre[k] - im[k]*kim[k];
+							im[k] = re[k]*kim[k] + im[k]*kre[k];
+							re[k] = r;
+						}
+						fft2d(re, im, size, true);
+						storeTile(re, width, area, t, tilesX, step, size, dst);
+						if(t + 1 < tiles)
+							storeTile(im, width, area, t + 1, tilesX, step, size, dst);
+					}
+				}
+			});
+		}
+
+		private void loadTile(float[] src, int width, int height, Rectangle area, int tile, int tilesX, int step, int size, double[] buffer){
+			int ox = area.x + (tile % tilesX)*step - l;
+			int oy = area.y + (tile / tilesX)*step - l;
+			int x1 = Math.min(ox + size, width);
+			int y1 = Math.min(oy + size, height);
+			for(int y = oy; y < y1; y++)
+				for(int x = ox; x < x1; x++)
+					buffer[(y - oy)*size + x - ox] = src[y*width + x];
+		}
+
+		private void storeTile(double[] buffer, int width, Rectangle area, int tile, int tilesX, int step, int size, float[] dst){
+			int ox = area.x + (tile % tilesX)*step;
+			int oy = area.y + (tile / tilesX)*step;
+			int x1 = Math.min(ox + step, area.x + area.width);
+			int y1 = Math.min(oy + step, area.y + area.height);
+			for(int y = oy; y < y1; y++)
+				for(int x = ox; x < x1; x++)
+					dst[y*width + x] = (float)buffer[(y - oy + l)*size + x - ox + l];
+		}
+
+		/**
+		 * in place 2d transform of a size*size array; the inverse is scaled by 1/size^2
+		 */
+		static void fft2d(double[] re, double[] im, int size, boolean inverse){
+			double[] rowRe = new double[size];
+			double[] rowIm = new double[size];
+			for(int y = 0; y < size; y++){
+				System.arraycopy(re, y*size, rowRe, 0, size);
+				System.arraycopy(im, y*size, rowIm, 0, size);
+				fft(rowRe, rowIm, inverse);
+				System.arraycopy(rowRe, 0, re, y*size, size);
+				System.arraycopy(rowIm, 0, im, y*size, size);
+			}
+			for(int x = 0; x < size; x++){
+				for(int y = 0; y < size; y++){
+					rowRe[y] = re[y*size + x];
+					rowIm[y] = im[y*size + x];
+				}
+				fft(rowRe, rowIm, inverse);
+				for(int y = 0; y < size; y++){
+					re[y*size + x] = rowRe[y];
+					im[y*size + x] = rowIm[y];
+				}
+			}
+			if(inverse){
+				double scale = 1.0 / ((double)size * size);
+				for(int k = 0; k < size * size; k++){
+					re[k] *= scale;
+					im[k] *= scale;
+				}
+			}
+		}
+
+		/**
+		 * iterative radix-2 transform, unscaled
+		 */
+		static void fft(double[] re, double[] im, boolean inverse){
+			int n = re.length;
+			for(int i = 1, j = 0; i < n; i++){
+				int bit = n >> 1;
+				for(; (j & bit) != 0; bit >>= 1)
+					j ^= bit;
+				j ^= bit;
+				if(i < j){
+					double t = re[i]; re[i] = re[j]; re[j] = t;
+					t = im[i]; im[i] = im[j]; im[j] = t;
+				}
+			}
+			for(int len = 2; len <= n; len <<= 1){
+				double angle = 2 * Math.PI / len * (inverse ? 1 : -1);
+				double wRe = Math.cos(angle);
+				double wIm = Math.sin(angle);
+				for(int i = 0; i < n; i += len){
+					double uRe = 1, uIm = 0;
+					for(int j = 0; j < len / 2; j++){
+						int a = i + j;
+						int b = a + len / 2;
+						double tRe = re[b]*uRe - im[b]*uIm;
+						double tIm = re[b]*uIm + im[b]*uRe;
+						re[b] = re[a] - tRe;
+						im[b] = im[a] - tIm;
+						re[a] += tRe;
+						im[a] += tIm;
+						double next = uRe*wRe - uIm*wIm;
+						uIm = uRe*wIm + uIm*wRe;
+						uRe = next;
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,95 @@
+import ij.IJ;
+import ij.ImagePlus;
+import ij.WindowManager;
+import ij.gui.GenericDialog;
+import ij.plugin.PlugIn;
+import ij.process.FloatProcessor;
+
+import java.awt.Rectangle;
+import java.util.Random;
+import java.util.StringTokenizer;
+
+
+/**
+ * Micro-benchmark of the FilterEngine backends.  Filters the current 32-bit image
+ * (or a synthetic flood map if there is none) at several peak sizes with every
+ * backend and logs taps per second, counting (2l+1)^2 taps per output pixel for
+ * every backend so the numbers are directly comparable.
+ */
+public class Filter_Benchmark implements PlugIn {
+
+	public void run(String arg){
+
+		GenericDialog gd = new GenericDialog("Filter Benchmark");
+		gd.addNumericField("Synthetic image size:", 1024, 0);
+		gd.addStringField("Peak sizes:", "7 13 31 61");
+		gd.addNumericField("Seconds per variant:", 1.0, 1);
+		gd.showDialog();
+		if(gd.wasCanceled())
+			return;
+		int size = (int)gd.getNextNumber();
+		String sizes = gd.getNextString();
+		double seconds = gd.getNextNumber();
+
+		int width, height;
+		float[] pixels;
+		ImagePlus imp = WindowManager.getCurrentImage();
+		if(imp != null && imp.getProcessor() instanceof FloatProcessor){
+			width = imp.getWidth();
+			height = imp.getHeight();
+			pixels = (float[])imp.getProcessor().getPixels();
+		}
+		else{
+			width = height = size;
+			pixels = floodMap(size);
+		}
+
+		IJ.log("Filter benchmark: " + width + "x" + height + ", " + Parallel.threads() + " threads, simd "
+				+ (FilterEngine.vectorSupported() ? "available" : "not available"));
+		String[] names = {FilterEngine.DIRECT, FilterEngine.DIRECT, FilterEngine.SEPARABLE, FilterEngine.FFT};
+		boolean[] vector = {false, true, false, false};
+		float[] out = new float[width * height];
+		StringTokenizer st = new StringTokenizer(sizes, " ,");
+		while(st.hasMoreTokens()){
+			int peakSize = Integer.parseInt(st.nextToken());
+			double[][] kernel = FilterEngine.sincKernel(peakSize, 0);
+			int l = (kernel.length - 1) / 2;
+			Rectangle area = FilterEngine.filterArea(new Rectangle(0, 0, width, height), l, width, height);
+			double taps = (double)area.width * area.height * kernel.length * kernel.length;
+			IJ.log("peak size " + peakSize + " (auto: " + FilterEngine.create(kernel, area).describe() + ")");
+			for(int k = 0; k < names.length; k++){
+				FilterEngine engine = FilterEngine.create(names[k], kernel, vector[k]);
+				engine.convolve(pixels, width, height, area, out);	//warm up
+				int runs = 0;
+				long start = System.nanoTime();
+				long elapsed;
+				do{
+					engine.convolve(pixels, width, height, area, out);
+					runs++;
+					elapsed = System.nanoTime() - start;
+				}while(elapsed < seconds * 1.0e9);
+				double rate = taps * runs / (elapsed / 1.0e9);
+				IJ.log("   " + engine.describe() + ": " + IJ.d2s(rate / 1.0e9, 3) + " Gtaps/s, "
+						+ IJ.d2s(elapsed / 1.0e6 / runs, 1) + " ms per image");
+			}
+		}
+	}
+
+	/**
+	 * grid of gaussian spots on a noisy background
+	 */
+	private float[] floodMap(int size){
+		float[] data = new float[size * size];
+		Random random = new Random(0);
+		double pitch = size / 32.0;
+		double sigma = pitch / 5;
+		for(int y = 0; y < size; y++){
+			for(int x = 0; x < size; x++){
+				double dx = (x % pitch) - pitch / 2;
+				double dy = (y % pitch) - pitch / 2;
+				data[y*size + x] = (float)(1000 * Math.exp(-(dx*dx + dy*dy) / (2*sigma*sigma)) + 50 * random.nextDouble());
+			}
+		}
+		return data;
+	}
+}
@@ -0,0 +1,24 @@
+import ij.Prefs;
+import ij.gui.GenericDialog;
+import ij.plugin.PlugIn;
+
+
+/**
+ * Sets the memory the Crystal Map filter cache (see FilterCache) may hold.  A Crystal
+ * Map window already open takes the new budget at its next Filter.
+ */
+public class Filter_Cache_Settings implements PlugIn {
+
+	public void run(String arg){
+
+		GenericDialog gd = new GenericDialog("Filter Cache Settings");
+		gd.addNumericField("Cache budget:", Prefs.get(Crystal_Map.CACHE_PREF, Crystal_Map.CACHE_DEFAULT), 0, 6, "MB");
+		gd.showDialog();
+		if(gd.wasCanceled())
+			return;
+		double budget = gd.getNextNumber();
+		if(Double.isNaN(budget) || budget < 0)
+			return;
+		Prefs.set(Crystal_Map.CACHE_PREF, (int)Math.round(budget));
+	}
+}
@@ -0,0 +1,195 @@
+import ij.Prefs;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Shared fork/join pool for the CrystalMap plugins, sized from the ImageJ
+ * "Parallel threads" preference (Edit>Options>Memory &amp; Threads).
+ *
+ * Progress and cancellation belong to the thread that sets a Monitor: while it is
+ * set, the work that thread starts through forRange, and its calls to checkpoint,
+ * report to it and stop with a CancellationException once it is canceled.  Work
+ * started by other threads, such as a preview, is not affected.  In the same way a
+ * thread can have the bytes that pool workers allocate for it counted (see
+ * countAllocation).
+ */
+public class Parallel {
+
+	/**
+	 * A piece of work over the indices [from, to); each call must only write data
+	 * owned by those indices
+	 */
+	public interface Range{
+		void run(int from, int to);
+	}
+
+	/**
+	 * Receives progress of the running step and tells it when to stop
+	 */
+	public interface Monitor{
+		boolean isCanceled();
+		void progress(long done, long total);
+	}
+
+	private static ForkJoinPool pool;
+	private static final ThreadLocal<Monitor> monitor = new ThreadLocal<Monitor>();
+	private static final ThreadLocal<AtomicLong> allocation = new ThreadLocal<AtomicLong>();
+	private static final com.sun.management.ThreadMXBean threadBean = threadBean();
+
+	/**
+	 * @return the shared pool, recreated if the thread preference has changed
+	 */
+	public static synchronized ForkJoinPool pool(){
+		int threads = Prefs.getThreads();
+		if(pool == null || pool.getParallelism() != threads){
+			//the old pool is not shut down, as callers may still be about to use it;
+			//its workers end on their own once idle
+			pool = new ForkJoinPool(threads);
+		}
+		return pool;
+	}
+
+	/**
+	 * @return number of worker threads
+	 */
+	public static int threads(){
+		return pool().getParallelism();
+	}
+
+	/**
+	 * Run range over [from, to), split into pieces of at least grain indices (about
+	 * eight per thread), and wait for all of them
+	 */
+	public static void forRange(int from, int to, int grain, Range range){
+		if(to <= from)
+			return;
+		ForkJoinPool p = pool();
+		grain = Math.max(Math.max(grain, 1), (to - from) / (p.getParallelism() * 8));
+		Split split = new Split(from, to, grain, range, monitor.get(), allocation.get(), new AtomicLong(), to - from);
+		if(p.getParallelism() == 1){
+			for(int i = from; i < to; i += grain)
+				new Split(i, Math.min(i + grain, to), grain, range, split.monitor, split.allocated, split.done, split.total).compute();
+			return;
+		}
+		p.invoke(split);
+	}
+
+	/**
+	 * @param m monitor of the step about to run on the calling thread, or null once it
+	 * has finished
+	 */
+	public static void setMonitor(Monitor m){
+		if(m == null)
+			monitor.remove();
+		else
+			monitor.set(m);
+	}
+
+	/**
+	 * Add to counter the bytes pool workers allocate for the work the calling thread
+	 * starts from now on; what the calling thread allocates itself is not included
+	 * @param counter the counter, or null to stop counting
+	 * @return the counter set before, or null
+	 */
+	public static AtomicLong countAllocation(AtomicLong counter){
+		AtomicLong previous = allocation.get();
+		if(counter == null)
+			allocation.remove();
+		else
+			allocation.set(counter);
+		return previous;
+	}
+
+	/**
+	 * @return bytes allocated so far by the calling thread, or -1 if the JVM cannot count them
+	 */
+	private static long threadAllocated(){
+		if(threadBean == null)
+			return -1;
+		try{
+			return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}catch(Throwable t){
+			return -1;
+		}
+	}
+
+	private static com.sun.management.ThreadMXBean threadBean(){
+		try{
+			java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+			if(bean instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean)bean).isThreadAllocatedMemorySupported())
+				return (com.sun.management.ThreadMXBean)bean;
+		}catch(Throwable t){
+		}
+		return null;
+	}
+
+	/**
+	 * Report progress to the monitor of the calling thread, if any
+	 * @throws CancellationException if its step has been canceled
+	 */
+	public static void checkpoint(long done, long total){
+		checkpoint(monitor.get(), done, total);
+	}
+
+	private static void checkpoint(Monitor m, long done, long total){
+		if(m == null)
+			return;
+		if(m.isCanceled())
+			throw new CancellationException();
+		m.progress(done, total);
+	}
+
+
+	static class Split extends RecursiveAction{
+
+		private static final long serialVersionUID = 1L;
+
+		final int from, to, grain;
+		final Range range;
+		final Monitor monitor;		//of the thread that called forRange
+		final AtomicLong allocated;	//counter of the thread that called forRange
+		final AtomicLong done;
+		final long total;
+
+		Split(int from, int to, int grain, Range range, Monitor monitor, AtomicLong allocated, AtomicLong done, long total){
+			this.from = from;
+			this.to = to;
+			this.grain = grain;
+			this.range = range;
+			this.monitor = monitor;
+			this.allocated = allocated;
+			this.done = done;
+			this.total = total;
+		}
+
+		protected void compute(){
+			if(to - from <= grain){
+				checkpoint(monitor, done.get(), total);
+				//work started by range reports to the same monitor and counter, whichever
+				//thread runs it; a thread already counted for is not counted again
+				Monitor previous = Parallel.monitor.get();
+				AtomicLong previousCounter = allocation.get();
+				long bytes = (allocated != null && previousCounter == null) ? threadAllocated() : -1;
+				setMonitor(monitor);
+				countAllocation(allocated);
+				try{
+					range.run(from, to);
+				}finally{
+					setMonitor(previous);
+					countAllocation(previousCounter);
+					if(bytes >= 0)
+						allocated.addAndGet(threadAllocated() - bytes);
+				}
+				checkpoint(monitor, done.addAndGet(to - from), total);
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new Split(from, middle, grain, range, monitor, allocated, done, total), new Split(middle, to, grain, range, monitor, allocated, done, total));
+		}
+	}
+}
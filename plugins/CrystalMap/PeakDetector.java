@@ -0,0 +1,322 @@
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Local maximum search over a filtered flood image held in a row-major
+ * <code>float[]</code>.  A pixel is a peak if it is strictly higher than every
+ * other pixel of the disc around it, the same disc CrystalMapper.locatePeaks
+ * scans, and is at least the cutoff.
+ *
+ * The image is first dilated (grey scale max filter) by an octagon inscribed in
+ * the disc, built from horizontal, vertical, diagonal and anti-diagonal line
+ * maxima computed with the van Herk/Gil-Werman algorithm, which takes three
+ * comparisons per pixel whatever the line length.  Since the octagon lies inside
+ * the disc, every peak equals its dilated value; only those candidates, usually
+ * the peaks themselves plus flat background, get the exact test over the disc.
+ *
+ * The area is split into bands of rows run on the {@link Parallel} pool; each band
+ * collects its peaks in its own primitive buffer and the buffers are merged and
+ * sorted once at the end.
+ */
+public class PeakDetector {
+
+	/**
+	 * @param pixels filtered image
+	 * @param width
+	 * @param area pixels to test; the disc of every one of them must lie inside the image
+	 * @param size radius of the disc
+	 * @param cutoff lowest value of a peak
+	 * @return x and y of each peak, in pairs, ordered by x then y
+	 */
+	public static int[] localMaxima(final float[] pixels, final int width, final Rectangle area, final int size, final float cutoff){
+		if(area.isEmpty())
+			return new int[0];
+		final int[] yMax = disc(size);
+		int[] octagon = octagon(size, yMax);
+		final int a = octagon[0], b = octagon[1];
+
+		//bands of rows, each with its own buffer of packed (x << 32 | y) peaks
+		final List<long[]> buffers = new ArrayList<long[]>();
+		Parallel.forRange(area.y, area.y + area.height, Math.max(16, 4*size), new Parallel.Range(){
+			public void run(int from, int to){
+				Rectangle band = new Rectangle(area.x, from, area.width, to - from);
+				long[] found = localMaxima(pixels, width, band, size, cutoff, yMax, a, b);
+				synchronized(buffers){
+					buffers.add(found);
+				}
+			}
+		});
+
+		//merge once; sorting makes the order independent of how the bands were run
+		int peaks = 0;
+		for(int i = 0; i < buffers.size(); i++)
+			peaks += buffers.get(i).length;
+		long[] found = new long[peaks];
+		peaks = 0;
+		for(int i = 0; i < buffers.size(); i++){
+			long[] band = buffers.get(i);
+			System.arraycopy(band, 0, found, peaks, band.length);
+			peaks += band.length;
+		}
+		return unpack(found, peaks);
+	}
+
+	/**
+	 * peaks of one band of rows, packed as x << 32 | y
+	 */
+	static long[] localMaxima(float[] pixels, int width, Rectangle area, int size, float cutoff, int[] yMax, int a, int b){
+		//dilate the area plus a margin of size, which holds every pixel the octagon can reach
+		Rectangle ext = new Rectangle(area.x - size, area.y - size, area.width + 2*size, area.height + 2*size);
+		int w = ext.width, h = ext.height;
+		float[] max = new float[w * h];
+		for(int y = 0; y < h; y++)
+			System.arraycopy(pixels, (ext.y + y)*width + ext.x, max, y*w, w);
+		Lines lines = new Lines(Math.max(w, h));
+		lines.dilate(max, w, h, 1, 0, a);	//square
+		lines.dilate(max, w, h, 0, 1, a);
+		lines.dilate(max, w, h, 1, 1, b);	//plus a diamond
+		lines.dilate(max, w, h, 1, -1, b);
+
+		long[] found = new long[16];
+		int peaks = 0;
+		for(int y = area.y; y < area.y + area.height; y++){
+			int row = (y - ext.y)*w - ext.x;
+			for(int x = area.x; x < area.x + area.width; x++){
+				float center = pixels[y*width + x];
+				if(center >= cutoff && center == max[row + x] && isMaximum(pixels, width, x, y, size, yMax, center)){
+					if(peaks == found.length)
+						found = Arrays.copyOf(found, found.length * 2);
+					found[peaks++] = ((long)x << 32) | y;
+				}
+			}
+		}
+		return Arrays.copyOf(found, peaks);
+	}
+
+	/**
+	 * Every local maximum of an image, whatever its value, sorted by decreasing value
+	 * (ties by x then y).  The peaks passing any cutoff are then a prefix of the table,
+	 * found by binary search.
+	 */
+	public static class Table{
+
+		final int[] x, y;
+		final float[] value;
+
+		/**
+		 * @param maxima x, y pairs from localMaxima with no cutoff
+		 */
+		public Table(int[] maxima, float[] pixels, int width){
+			int n = maxima.length / 2;
+			Integer[] order = new Integer[n];
+			final float[] v = new float[n];
+			for(int k = 0; k < n; k++){
+				order[k] = Integer.valueOf(k);
+				v[k] = pixels[maxima[2*k + 1]*width + maxima[2*k]];
+			}
+			//maxima are in x, y order, so a stable sort breaks ties by position
+			Arrays.sort(order, new java.util.Comparator<Integer>(){
+				public int compare(Integer p, Integer q){
+					return Float.compare(v[q.intValue()], v[p.intValue()]);
+				}
+			});
+			x = new int[n];
+			y = new int[n];
+			value = new float[n];
+			for(int k = 0; k < n; k++){
+				int i = order[k].intValue();
+				x[k] = maxima[2*i];
+				y[k] = maxima[2*i + 1];
+				value[k] = v[i];
+			}
+		}
+
+		public int size(){
+			return x.length;
+		}
+
+		public int getX(int k){
+			return x[k];
+		}
+
+		public int getY(int k){
+			return y[k];
+		}
+
+		public float getValue(int k){
+			return value[k];
+		}
+
+		/**
+		 * @return number of maxima at least cutoff
+		 */
+		public int count(float cutoff){
+			int lo = 0, hi = value.length;
+			while(lo < hi){
+				int mid = (lo + hi) >>> 1;
+				if(value[mid] >= cutoff)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			return lo;
+		}
+
+		/**
+		 * @return number of maxima passing each cutoff
+		 */
+		public int[] counts(float[] cutoffs){
+			int[] counts = new int[cutoffs.length];
+			for(int i = 0; i < cutoffs.length; i++)
+				counts[i] = count(cutoffs[i]);
+			return counts;
+		}
+	}
+
+	/**
+	 * sort packed (x << 32 | y) positions by x then y and return them as x, y pairs
+	 */
+	static int[] unpack(long[] packed, int n){
+		Arrays.sort(packed, 0, n);
+		int[] pairs = new int[2*n];
+		for(int k = 0; k < n; k++){
+			pairs[2*k] = (int)(packed[k] >> 32);
+			pairs[2*k + 1] = (int)packed[k];
+		}
+		return pairs;
+	}
+
+	/**
+	 * half height of each column of the disc of radius size, as scanned by locatePeaks
+	 */
+	static int[] disc(int size){
+		int r2 = size*size;
+		int[] yMax = new int[2*size + 1];
+		for(int dx = -size; dx <= size; dx++)
+			yMax[dx + size] = (int)(Math.sqrt(r2 - dx*dx) + 0.5);
+		return yMax;
+	}
+
+	/**
+	 * The largest octagon {|x|,|y| <= a+2b, |x|+|y| <= 2a+2b}, the sum of a square of
+	 * half side a and diagonal lines of half length b, that fits inside the disc
+	 * @return {a, b}
+	 */
+	static int[] octagon(int size, int[] yMax){
+		int[] best = {0, 0};
+		int bestArea = 0;
+		for(int a = 0; a <= size; a++){
+			for(int b = 0; a + 2*b <= size; b++){
+				int reach = a + 2*b;
+				boolean inside = true;
+				int area = 0;
+				for(int dx = -reach; dx <= reach && inside; dx++){
+					int half = Math.min(reach, 2*a + 2*b - Math.abs(dx));
+					inside = half <= yMax[dx + size];
+					area += 2*half + 1;
+				}
+				if(inside && area > bestArea){
+					bestArea = area;
+					best[0] = a;
+					best[1] = b;
+				}
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * true if no other pixel of the disc is as high as center
+	 */
+	static boolean isMaximum(float[] pixels, int width, int x, int y, int size, int[] yMax, float center){
+		//the 4-neighbours reject flat background at once
+		if(size > 0 && (center <= pixels[y*width + x - 1] || center <= pixels[y*width + x + 1]
+				|| center <= pixels[(y - 1)*width + x] || center <= pixels[(y + 1)*width + x]))
+			return false;
+		for(int tempX = x - size; tempX <= x + size; tempX++){
+			int h = yMax[tempX - x + size];
+			for(int tempY = y - h; tempY <= y + h; tempY++){
+				if(center <= pixels[tempY*width + tempX] && !(tempX == x && tempY == y))
+					return false;
+			}
+		}
+		return true;
+	}
+
+
+	/**
+	 * van Herk/Gil-Werman running maximum along the lines of an image in one direction.
+	 * Values outside the image count as -infinity.
+	 */
+	static class Lines{
+
+		private float[] line, prefix, suffix;
+
+		Lines(int length){
+			line = new float[length];
+			prefix = new float[length];
+			suffix = new float[length];
+		}
+
+		/**
+		 * replace every pixel of image by the maximum over the 2k+1 pixels centered on
+		 * it along direction (dx, dy), dx = 0 or 1 and dy = -1, 0 or 1
+		 */
+		void dilate(float[] image, int w, int h, int dx, int dy, int k){
+			if(k <= 0)
+				return;
+			if(line.length < Math.max(w, h) + 2*k){
+				line = new float[Math.max(w, h) + 2*k];
+				prefix = new float[line.length];
+				suffix = new float[line.length];
+			}
+			//every line starts on the left column or on the top (dy = 1) / bottom (dy = -1) row
+			if(dx == 0){
+				for(int x = 0; x < w; x++)
+					line(image, w, h, x, 0, 0, 1, k);
+				return;
+			}
+			for(int y = 0; y < h; y++)
+				line(image, w, h, 0, y, dx, dy, k);
+			if(dy != 0){
+				int y0 = (dy > 0) ? 0 : h - 1;
+				for(int x = 1; x < w; x++)
+					line(image, w, h, x, y0, dx, dy, k);
+			}
+		}
+
+		/**
+		 * the line is padded with k values of -infinity at each end, so the window of
+		 * pixel i is [i, i+2k] of the padded line: one block of 2k+1, or the suffix of one
+		 * block plus the prefix of the next
+		 */
+		private void line(float[] image, int w, int h, int x0, int y0, int dx, int dy, int k){
+			int n = k;
+			for(int x = x0, y = y0; x < w && y >= 0 && y < h; x += dx, y += dy)
+				line[n++] = image[y*w + x];
+			if(n == k + 1)
+				return;
+			int length = n + k;
+			for(int i = 0; i < k; i++){
+				line[i] = Float.NEGATIVE_INFINITY;
+				line[n + i] = Float.NEGATIVE_INFINITY;
+			}
+			int block = 2*k + 1;
+			for(int start = 0; start < length; start += block){
+				int end = Math.min(start + block, length);
+				prefix[start] = line[start];
+				for(int i = start + 1; i < end; i++)
+					prefix[i] = Math.max(prefix[i - 1], line[i]);
+				suffix[end - 1] = line[end - 1];
+				for(int i = end - 2; i >= start; i--)
+					suffix[i] = Math.max(suffix[i + 1], line[i]);
+			}
+			int i = 0;
+			for(int x = x0, y = y0; i < n - k; x += dx, y += dy, i++)
+				image[y*w + x] = Math.max(suffix[i], prefix[i + 2*k]);
+		}
+	}
+}
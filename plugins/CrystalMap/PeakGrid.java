@@ -0,0 +1,211 @@
+import java.util.Arrays;
+
+
+/**
+ * Uniform grid over peak positions, for picking the peak nearest a mouse click in
+ * PointHandler and the best next peak while PeakMapper enumerates the crystals.
+ * Peaks are known by their PeakStore handle and the grid is kept in step with the
+ * store through add, move and remove.
+ *
+ * A query visits rings of cells around a point until no unvisited cell can hold a
+ * better peak, so it touches a handful of cells whatever the number of peaks and
+ * allocates nothing.
+ */
+public class PeakGrid {
+
+	private final int cellWidth, cellHeight, cols, rows;
+	private final int[][] cells;
+	private final int[] counts;
+	private int[] px = new int[64], py = new int[64];
+	private int n = 0;
+
+	/**
+	 * A score of the peaks for search(), lower is better
+	 */
+	public interface Score{
+		/**
+		 * @return score of peak handle; NaN or infinity if it is not a candidate
+		 */
+		double of(int handle);
+		/**
+		 * @return lowest score a peak at least distance pixels from the query point can have
+		 */
+		double atLeast(double distance);
+		/**
+		 * @return rank of handle among peaks with equal scores, lowest first
+		 */
+		int order(int handle);
+	}
+
+	/**
+	 * @param width
+	 * @param height
+	 * @param cell side of a grid cell, in pixels
+	 */
+	public PeakGrid(int width, int height, int cell){
+		this(width, height, cell, cell);
+	}
+
+	public PeakGrid(int width, int height, int cellWidth, int cellHeight){
+		this.cellWidth = Math.max(cellWidth, 1);
+		this.cellHeight = Math.max(cellHeight, 1);
+		cols = Math.max(1, (width + this.cellWidth - 1) / this.cellWidth);
+		rows = Math.max(1, (height + this.cellHeight - 1) / this.cellHeight);
+		cells = new int[cols*rows][];
+		counts = new int[cols*rows];
+	}
+
+	public int size(){
+		return n;
+	}
+
+	public void clear(){
+		Arrays.fill(counts, 0);
+		n = 0;
+	}
+
+	public void add(int handle, int x, int y){
+		if(handle >= px.length){
+			px = Arrays.copyOf(px, Math.max(2*px.length, handle + 1));
+			py = Arrays.copyOf(py, px.length);
+		}
+		px[handle] = x;
+		py[handle] = y;
+		insert(cellOf(x, y), handle);
+		n++;
+	}
+
+	public void remove(int handle){
+		delete(cellOf(px[handle], py[handle]), handle);
+		n--;
+	}
+
+	public void move(int handle, int x, int y){
+		int from = cellOf(px[handle], py[handle]), to = cellOf(x, y);
+		px[handle] = x;
+		py[handle] = y;
+		if(from != to){
+			delete(from, handle);
+			insert(to, handle);
+		}
+	}
+
+	/**
+	 * @param prefer peak kept if it ties for nearest
+	 * @param store list of the peaks; other ties go to the peak earliest in it
+	 * @return handle of the peak nearest (x, y), or -1 if there is none
+	 */
+	public int nearest(int x, int y, int prefer, PeakStore store){
+		if(n == 0)
+			return -1;
+		int cx = column(x), cy = row(y);
+		int best = -1;
+		long bestDistance = Long.MAX_VALUE;
+		for(int r = 0; ; r++){
+			for(int j = Math.max(cy - r, 0); j <= Math.min(cy + r, rows - 1); j++){
+				//whole rows at the top and bottom of the ring, both ends of the others
+				int step = (j == cy - r || j == cy + r) ? 1 : Math.max(1, 2*r);
+				for(int i = cx - r; i <= cx + r; i += step){
+					if(i < 0 || i >= cols)
+						continue;
+					int c = j*cols + i;
+					int[] members = cells[c];
+					for(int k = 0; k < counts[c]; k++){
+						int p = members[k];
+						long dx = px[p] - x, dy = py[p] - y;
+						long distance = dx*dx + dy*dy;
+						if(distance < bestDistance || (distance == bestDistance && p != best
+								&& (p == prefer || (best != prefer && store.indexOf(p) < store.indexOf(best))))){
+							bestDistance = distance;
+							best = p;
+						}
+					}
+				}
+			}
+			long margin = margin(x, y, cx, cy, r);
+			if(margin == Long.MAX_VALUE || (best >= 0 && margin > 0 && bestDistance < margin*margin))
+				return best;
+		}
+	}
+
+	/**
+	 * @param limit only peaks scoring below limit are candidates
+	 * @return handle of the peak with the lowest score, the lowest order among equal
+	 * scores, or -1 if no peak scores below limit
+	 */
+	public int search(int x, int y, double limit, Score score){
+		if(n == 0)
+			return -1;
+		int cx = column(x), cy = row(y);
+		int best = -1;
+		double bestScore = limit;
+		for(int r = 0; ; r++){
+			for(int j = Math.max(cy - r, 0); j <= Math.min(cy + r, rows - 1); j++){
+				int step = (j == cy - r || j == cy + r) ? 1 : Math.max(1, 2*r);
+				for(int i = cx - r; i <= cx + r; i += step){
+					if(i < 0 || i >= cols)
+						continue;
+					int c = j*cols + i;
+					int[] members = cells[c];
+					for(int k = 0; k < counts[c]; k++){
+						int p = members[k];
+						double value = score.of(p);
+						if(value < bestScore || (value == bestScore && best >= 0 && score.order(p) < score.order(best))){
+							bestScore = value;
+							best = p;
+						}
+					}
+				}
+			}
+			long margin = margin(x, y, cx, cy, r);
+			if(margin == Long.MAX_VALUE || (margin > 0 && bestScore < score.atLeast(margin)))
+				return best;
+		}
+	}
+
+	/**
+	 * closest any cell outside ring r can be, over the sides that still have cells
+	 */
+	private long margin(int x, int y, int cx, int cy, int r){
+		long margin = Long.MAX_VALUE;
+		if(cx - r > 0)
+			margin = Math.min(margin, x - (long)(cx - r)*cellWidth);
+		if(cx + r < cols - 1)
+			margin = Math.min(margin, (long)(cx + r + 1)*cellWidth - x);
+		if(cy - r > 0)
+			margin = Math.min(margin, y - (long)(cy - r)*cellHeight);
+		if(cy + r < rows - 1)
+			margin = Math.min(margin, (long)(cy + r + 1)*cellHeight - y);
+		return margin;
+	}
+
+	private int column(int x){
+		return Math.min(Math.max(x / cellWidth, 0), cols - 1);
+	}
+
+	private int row(int y){
+		return Math.min(Math.max(y / cellHeight, 0), rows - 1);
+	}
+
+	private int cellOf(int x, int y){
+		return row(y)*cols + column(x);
+	}
+
+	private void insert(int c, int handle){
+		if(cells[c] == null)
+			cells[c] = new int[4];
+		else if(counts[c] == cells[c].length)
+			cells[c] = Arrays.copyOf(cells[c], 2*counts[c]);
+		cells[c][counts[c]++] = handle;
+	}
+
+	private void delete(int c, int handle){
+		int[] members = cells[c];
+		for(int i = 0; i < counts[c]; i++){
+			if(members[i] == handle){
+				members[i] = members[--counts[c]];
+				return;
+			}
+		}
+	}
+}
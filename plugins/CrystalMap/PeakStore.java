@@ -0,0 +1,245 @@
+import java.util.Arrays;
+
+
+/**
+ * The peaks of a crystal map held in primitive arrays: position, crystal number,
+ * row, column and value.
+ *
+ * A peak is known by a handle that stays valid until the peak is removed; the
+ * fields are stored by handle, so they never move.  The peaks also have a list
+ * order, used for display, numbering and iteration (handle(i) for i below size()).
+ * Removing a peak moves the last peak of the list into its place, so removal is
+ * O(1) and the order is kept except for that one peak.
+ */
+public class PeakStore {
+
+	private int[] x, y, id, row, col, value;
+	private int[] order;		//handles in list order
+	private int[] index;		//position of each handle in order, -1 if free
+	private int[] free;
+	private int size = 0, frees = 0, handles = 0;
+
+	public PeakStore(){
+		this(64);
+	}
+
+	public PeakStore(int capacity){
+		capacity = Math.max(capacity, 4);
+		x = new int[capacity];
+		y = new int[capacity];
+		id = new int[capacity];
+		row = new int[capacity];
+		col = new int[capacity];
+		value = new int[capacity];
+		order = new int[capacity];
+		index = new int[capacity];
+		free = new int[capacity];
+	}
+
+	/**
+	 * @return handle of a new, unnumbered peak at the end of the list
+	 */
+	public int add(int px, int py){
+		return add(px, py, -1);
+	}
+
+	public int add(int px, int py, int crystal){
+		int h;
+		if(frees > 0)
+			h = free[--frees];
+		else{
+			if(handles == x.length)
+				grow(2*handles);
+			h = handles++;
+		}
+		x[h] = px;
+		y[h] = py;
+		id[h] = crystal;
+		row[h] = 0;
+		col[h] = 0;
+		value[h] = 0;
+		order[size] = h;
+		index[h] = size++;
+		return h;
+	}
+
+	/**
+	 * Remove peak h; the last peak of the list takes its place
+	 */
+	public void remove(int h){
+		int i = index[h];
+		int last = order[--size];
+		order[i] = last;
+		index[last] = i;
+		index[h] = -1;
+		free[frees++] = h;
+	}
+
+	public void clear(){
+		size = 0;
+		frees = 0;
+		handles = 0;
+	}
+
+	/**
+	 * @return number of peaks
+	 */
+	public int size(){
+		return size;
+	}
+
+	/**
+	 * @return handle of the i-th peak of the list
+	 */
+	public int handle(int i){
+		return order[i];
+	}
+
+	/**
+	 * @return position of peak h in the list
+	 */
+	public int indexOf(int h){
+		return index[h];
+	}
+
+	public boolean contains(int h){
+		return h >= 0 && h < handles && index[h] >= 0;
+	}
+
+	/**
+	 * @return bound on every handle in use, for arrays indexed by handle
+	 */
+	public int capacity(){
+		return handles;
+	}
+
+	public int getX(int h){
+		return x[h];
+	}
+
+	public int getY(int h){
+		return y[h];
+	}
+
+	public void setLocation(int h, int px, int py){
+		x[h] = px;
+		y[h] = py;
+	}
+
+	public int getCrystalNumber(int h){
+		return id[h];
+	}
+
+	public void setCrystalNumber(int h, int crystal){
+		id[h] = crystal;
+	}
+
+	public int getRow(int h){
+		return row[h];
+	}
+
+	public void setRow(int h, int r){
+		row[h] = r;
+	}
+
+	public int getColumn(int h){
+		return col[h];
+	}
+
+	public void setColumn(int h, int c){
+		col[h] = c;
+	}
+
+	public int getValue(int h){
+		return value[h];
+	}
+
+	public void setValue(int h, int v){
+		value[h] = v;
+	}
+
+	private void grow(int capacity){
+		x = Arrays.copyOf(x, capacity);
+		y = Arrays.copyOf(y, capacity);
+		id = Arrays.copyOf(id, capacity);
+		row = Arrays.copyOf(row, capacity);
+		col = Arrays.copyOf(col, capacity);
+		value = Arrays.copyOf(value, capacity);
+		order = Arrays.copyOf(order, capacity);
+		index = Arrays.copyOf(index, capacity);
+		free = Arrays.copyOf(free, capacity);
+	}
+
+
+	/**
+	 * A set of peak handles with O(1) add, remove and membership test, iterated by
+	 * position like the store itself (get(i) for i below size())
+	 */
+	public static class Subset{
+
+		private int[] members = new int[16];
+		private int[] index = new int[16];
+		private int size = 0;
+
+		public Subset(){
+			Arrays.fill(index, -1);
+		}
+
+		public void add(int h){
+			if(contains(h))
+				return;
+			if(h >= index.length){
+				int old = index.length;
+				index = Arrays.copyOf(index, Math.max(2*old, h + 1));
+				Arrays.fill(index, old, index.length, -1);
+			}
+			if(size == members.length)
+				members = Arrays.copyOf(members, 2*size);
+			members[size] = h;
+			index[h] = size++;
+		}
+
+		/**
+		 * add every peak of store
+		 */
+		public void addAll(PeakStore store){
+			for(int i = 0; i < store.size(); i++)
+				add(store.handle(i));
+		}
+
+		public void remove(int h){
+			if(!contains(h))
+				return;
+			int i = index[h];
+			int last = members[--size];
+			members[i] = last;
+			index[last] = i;
+			index[h] = -1;
+		}
+
+		public boolean contains(int h){
+			return h >= 0 && h < index.length && index[h] >= 0;
+		}
+
+		public int size(){
+			return size;
+		}
+
+		public int get(int i){
+			return members[i];
+		}
+
+		/**
+		 * @return position of h in the set, -1 if it is not a member
+		 */
+		public int indexOf(int h){
+			return contains(h) ? index[h] : -1;
+		}
+
+		public void clear(){
+			for(int i = 0; i < size; i++)
+				index[members[i]] = -1;
+			size = 0;
+		}
+	}
+}
@@ -0,0 +1,396 @@
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+
+/**
+ * The Voronoi regions of a set of seed points: for every pixel, the nearest seed and
+ * its label, kept up to date as single seeds are added, moved or removed.
+ *
+ * build() labels the whole image with {@link DistanceTransform}.  After that an edit
+ * only touches the cells next to the edited seed, and leaves every pixel with a seed
+ * at the least distance, as build() would (two seeds at the same distance may be
+ * chosen differently).  A removed seed's pixels go to the nearest of the seeds close
+ * enough to its cell: no farther than the nearest seed whose cell borders it.  A new
+ * seed's cell lies on its side of the bisector with every other seed, so the seeds met
+ * by a flood fill out from it cut a polygon from the image that holds the whole cell,
+ * and the pixels of that polygon's bounding box it is nearer than their owner are its
+ * own.  A seed given outside the image is placed on the nearest pixel of the image,
+ * so every seed has a cell.  Each seed keeps a
+ * bounding box of its cell, which may grow larger than the cell but never smaller.
+ * getChanged() gives the pixels an edit may have relabeled, empty if none.
+ */
+public class RegionMap {
+
+	private final int width, height;
+	private int[] owner;		//seed nearest each pixel, row by row, -1 if none
+	private int[] seedX = new int[256], seedY = new int[256], label = new int[256];
+	private int[] minX = new int[256], minY = new int[256], maxX = new int[256], maxY = new int[256];
+	private boolean[] alive = new boolean[256];
+	private int seeds = 0;
+	private Rectangle changed = new Rectangle(0, 0, -1, -1);
+	private int[] queue = new int[256];
+
+	public RegionMap(int width, int height){
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * Add a seed without relabeling any pixel, before build(); (x, y) is clamped into
+	 * the image
+	 * @return index of the seed
+	 */
+	public int addSeed(int x, int y, int seedLabel){
+		if(seeds == seedX.length){
+			int capacity = 2*seeds;
+			seedX = Arrays.copyOf(seedX, capacity);
+			seedY = Arrays.copyOf(seedY, capacity);
+			label = Arrays.copyOf(label, capacity);
+			minX = Arrays.copyOf(minX, capacity);
+			minY = Arrays.copyOf(minY, capacity);
+			maxX = Arrays.copyOf(maxX, capacity);
+			maxY = Arrays.copyOf(maxY, capacity);
+			alive = Arrays.copyOf(alive, capacity);
+		}
+		seedX[seeds] = clamp(x, width);
+		seedY[seeds] = clamp(y, height);
+		label[seeds] = seedLabel;
+		alive[seeds] = true;
+		minX[seeds] = width;
+		minY[seeds] = height;
+		maxX[seeds] = -1;
+		maxY[seeds] = -1;
+		return seeds++;
+	}
+
+	/**
+	 * Label every pixel with its nearest seed
+	 */
+	public void build(){
+		owner = DistanceTransform.nearest(width, height, seedX, seedY, seeds);
+		for(int k = 0; k < seeds; k++){
+			minX[k] = width;
+			minY[k] = height;
+			maxX[k] = -1;
+			maxY[k] = -1;
+		}
+		for(int y = 0; y < height; y++){
+			for(int x = 0; x < width; x++){
+				int k = owner[y*width + x];
+				if(k >= 0)
+					extend(k, x, y);
+			}
+		}
+		changed.setBounds(0, 0, width, height);
+	}
+
+	public int getWidth(){
+		return width;
+	}
+
+	public int getHeight(){
+		return height;
+	}
+
+	/**
+	 * @return label of the seed nearest (x, y), or -1 if there are no seeds
+	 */
+	public int getLabel(int x, int y){
+		int k = owner[y*width + x];
+		return (k < 0) ? -1 : label[k];
+	}
+
+	/**
+	 * @return seed nearest (x, y), or -1
+	 */
+	public int getSeed(int x, int y){
+		return owner[y*width + x];
+	}
+
+	/**
+	 * Relabel the cell of seed k
+	 */
+	public void setLabel(int k, int seedLabel){
+		label[k] = seedLabel;
+		changed.setBounds(box(k));
+	}
+
+	/**
+	 * Add a seed and give it the pixels nearer to it than to their seed
+	 * @return index of the seed
+	 */
+	public int add(int x, int y, int seedLabel){
+		int k = addSeed(x, y, seedLabel);
+		changed.setBounds(0, 0, -1, -1);
+		claim(k);
+		return k;
+	}
+
+	/**
+	 * Remove seed k and give its pixels to the neighboring seeds
+	 */
+	public void remove(int k){
+		changed.setBounds(0, 0, -1, -1);
+		if(!alive[k])
+			return;
+		alive[k] = false;
+		vacate(k);
+	}
+
+	/**
+	 * Move seed k to (x, y), clamped into the image
+	 */
+	public void move(int k, int x, int y){
+		changed.setBounds(0, 0, -1, -1);
+		alive[k] = false;
+		vacate(k);
+		alive[k] = true;
+		seedX[k] = clamp(x, width);
+		seedY[k] = clamp(y, height);
+		claim(k);
+	}
+
+	/**
+	 * @return pixels relabeled by the last edit, or the whole image after build()
+	 */
+	public Rectangle getChanged(){
+		return changed;
+	}
+
+	/**
+	 * Give the pixels of seed k, no longer alive, to their nearest seed
+	 */
+	private void vacate(int k){
+		if(maxX[k] < 0)
+			return;
+		Rectangle box = box(k);
+		int[] near = new int[8];
+		int count = 0;
+		for(int y = box.y; y < box.y + box.height; y++){
+			for(int x = box.x; x < box.x + box.width; x++){
+				if(owner[y*width + x] != k)
+					continue;
+				for(int dy = -1; dy <= 1; dy++){
+					for(int dx = -1; dx <= 1; dx++){
+						int nx = x + dx, ny = y + dy;
+						if(nx < 0 || ny < 0 || nx >= width || ny >= height)
+							continue;
+						int j = owner[ny*width + nx];
+						if(j < 0 || j == k || contains(near, count, j))
+							continue;
+						if(count == near.length)
+							near = Arrays.copyOf(near, 2*count);
+						near[count++] = j;
+					}
+				}
+			}
+		}
+
+		//a pixel's nearest seed is no farther than the nearest of the bordering seeds
+		long reach = (count == 0) ? Long.MAX_VALUE : 0;
+		for(int y = box.y; y < box.y + box.height && count > 0; y++){
+			for(int x = box.x; x < box.x + box.width; x++){
+				if(owner[y*width + x] == k)
+					reach = Math.max(reach, distance(nearest(near, count, x, y), x, y));
+			}
+		}
+		count = 0;
+		for(int j = 0; j < seeds; j++){
+			if(alive[j] && distance(j, box) <= reach){
+				if(count == near.length)
+					near = Arrays.copyOf(near, 2*count);
+				near[count++] = j;
+			}
+		}
+
+		for(int y = box.y; y < box.y + box.height; y++){
+			for(int x = box.x; x < box.x + box.width; x++){
+				int i = y*width + x;
+				if(owner[i] != k)
+					continue;
+				int best = nearest(near, count, x, y);
+				owner[i] = best;
+				if(best >= 0)
+					extend(best, x, y);
+			}
+		}
+		changed.add(box);
+		minX[k] = width;
+		minY[k] = height;
+		maxX[k] = -1;
+		maxY[k] = -1;
+	}
+
+	/**
+	 * Give seed k the pixels it is nearer to than their seed: first those a flood fill
+	 * out from the seed reaches, then any others in the bounding box of the polygon the
+	 * seeds the flood stopped at leave to k
+	 */
+	private void claim(int k){
+		int x0 = seedX[k], y0 = seedY[k];
+		int[] met = new int[8];
+		int count = 0;
+		int j0 = owner[y0*width + x0];
+		if(j0 >= 0 && !nearer(k, j0, x0, y0))
+			return;		//a later seed on the same pixel takes all of k's cell
+		int head = 0, tail = 0;
+		owner[y0*width + x0] = k;
+		extend(k, x0, y0);
+		queue[tail++] = y0*width + x0;
+		while(head < tail){
+			int i = queue[head++];
+			int x = i % width, y = i / width;
+			for(int dy = -1; dy <= 1; dy++){
+				for(int dx = -1; dx <= 1; dx++){
+					int nx = x + dx, ny = y + dy;
+					if(nx < 0 || ny < 0 || nx >= width || ny >= height)
+						continue;
+					int n = ny*width + nx;
+					int j = owner[n];
+					if(j == k)
+						continue;
+					if(j >= 0 && !nearer(k, j, nx, ny)){
+						if(!contains(met, count, j)){
+							if(count == met.length)
+								met = Arrays.copyOf(met, 2*count);
+							met[count++] = j;
+						}
+						continue;
+					}
+					owner[n] = k;
+					extend(k, nx, ny);
+					if(tail == queue.length)
+						queue = Arrays.copyOf(queue, 2*tail);
+					queue[tail++] = n;
+				}
+			}
+		}
+
+		//pixels of the cell the flood could not reach, cut off by a thin part of the cell
+		Rectangle bounds = cell(k, met, count);
+		for(int y = bounds.y; y < bounds.y + bounds.height; y++){
+			for(int x = bounds.x; x < bounds.x + bounds.width; x++){
+				int i = y*width + x;
+				int j = owner[i];
+				if(j != k && (j < 0 || nearer(k, j, x, y))){
+					owner[i] = k;
+					extend(k, x, y);
+				}
+			}
+		}
+		changed.add(box(k));
+	}
+
+	/**
+	 * @return bounding box of the pixels of the image on k's side of the bisector with
+	 * each of the seeds met, which holds the cell of k
+	 */
+	private Rectangle cell(int k, int[] met, int count){
+		double[] px = {0, width - 1, width - 1, 0}, py = {0, 0, height - 1, height - 1};
+		int n = 4;
+		for(int m = 0; m < count && n > 0; m++){
+			int j = met[m];
+			//(x, y) is no farther from k than from j where a*x + b*y <= c
+			double a = 2.0*(seedX[j] - seedX[k]), b = 2.0*(seedY[j] - seedY[k]);
+			double c = (double)seedX[j]*seedX[j] + (double)seedY[j]*seedY[j]
+					- (double)seedX[k]*seedX[k] - (double)seedY[k]*seedY[k];
+			double[] qx = new double[n + 1], qy = new double[n + 1];
+			int q = 0;
+			for(int v = 0; v < n; v++){
+				int w = (v + 1) % n;
+				double sv = a*px[v] + b*py[v] - c, sw = a*px[w] + b*py[w] - c;
+				if(sv <= 0){
+					qx[q] = px[v];
+					qy[q++] = py[v];
+				}
+				if((sv < 0 && sw > 0) || (sv > 0 && sw < 0)){
+					double t = sv / (sv - sw);
+					qx[q] = px[v] + t*(px[w] - px[v]);
+					qy[q++] = py[v] + t*(py[w] - py[v]);
+				}
+			}
+			px = qx;
+			py = qy;
+			n = q;
+		}
+		if(n == 0)
+			return new Rectangle(0, 0, -1, -1);
+		double left = px[0], right = px[0], top = py[0], bottom = py[0];
+		for(int v = 1; v < n; v++){
+			left = Math.min(left, px[v]);
+			right = Math.max(right, px[v]);
+			top = Math.min(top, py[v]);
+			bottom = Math.max(bottom, py[v]);
+		}
+		//a pixel further out to allow for rounding
+		int x0 = Math.max((int)Math.floor(left) - 1, 0), x1 = Math.min((int)Math.ceil(right) + 1, width - 1);
+		int y0 = Math.max((int)Math.floor(top) - 1, 0), y1 = Math.min((int)Math.ceil(bottom) + 1, height - 1);
+		return new Rectangle(x0, y0, x1 - x0 + 1, y1 - y0 + 1);
+	}
+
+	/**
+	 * @return whether (x, y) goes to seed k rather than seed j: k is nearer, or as near and later
+	 */
+	private boolean nearer(int k, int j, int x, int y){
+		long d = distance(k, x, y), dj = distance(j, x, y);
+		return d < dj || (d == dj && k > j);
+	}
+
+	/**
+	 * @return the seed of list nearest (x, y), the later on a tie, or -1 if the list is empty
+	 */
+	private int nearest(int[] list, int count, int x, int y){
+		int best = -1;
+		for(int n = 0; n < count; n++){
+			if(best < 0 || nearer(list[n], best, x, y))
+				best = list[n];
+		}
+		return best;
+	}
+
+	/**
+	 * @return v moved into [0, size)
+	 */
+	private static int clamp(int v, int size){
+		return Math.max(0, Math.min(size - 1, v));
+	}
+
+	/**
+	 * @return squared distance from seed k to the nearest pixel of box
+	 */
+	private long distance(int k, Rectangle box){
+		long dx = Math.max(Math.max(box.x - seedX[k], seedX[k] - (box.x + box.width - 1)), 0);
+		long dy = Math.max(Math.max(box.y - seedY[k], seedY[k] - (box.y + box.height - 1)), 0);
+		return dx*dx + dy*dy;
+	}
+
+	private long distance(int k, int x, int y){
+		long dx = x - seedX[k], dy = y - seedY[k];
+		return dx*dx + dy*dy;
+	}
+
+	private void extend(int k, int x, int y){
+		if(x < minX[k])
+			minX[k] = x;
+		if(x > maxX[k])
+			maxX[k] = x;
+		if(y < minY[k])
+			minY[k] = y;
+		if(y > maxY[k])
+			maxY[k] = y;
+	}
+
+	private Rectangle box(int k){
+		if(maxX[k] < 0)
+			return new Rectangle(0, 0, -1, -1);
+		return new Rectangle(minX[k], minY[k], maxX[k] - minX[k] + 1, maxY[k] - minY[k] + 1);
+	}
+
+	private static boolean contains(int[] list, int count, int value){
+		for(int n = 0; n < count; n++){
+			if(list[n] == value)
+				return true;
+		}
+		return false;
+	}
+}
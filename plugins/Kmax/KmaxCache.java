@@ -0,0 +1,208 @@
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+
+/**
+ * Binary sidecar of a Kmax text image, so a flood map opened again is read as floats
+ * instead of parsed.  The sidecar sits next to the text file, with SUFFIX added to
+ * its name: a 64 byte header (magic, version, width, height, and the size,
+ * modification time and content hash of the text file it was made from) followed by
+ * the values as little-endian float32, row by row.
+ *
+ * open() reads the text file once, whether the sidecar is used or not: it only uses
+ * a sidecar whose size and time match the text file, and then whose hash matches the
+ * bytes read, hashed in chunks on the {@link KmaxPool}; otherwise the same bytes are
+ * parsed and a new sidecar is written.  The size and time written with a sidecar are
+ * taken before the text is read, so a text file changed meanwhile never matches it.
+ * Neither file is memory mapped, so both can be replaced or deleted as soon as open()
+ * returns.
+ */
+public class KmaxCache {
+
+	public static final String SUFFIX = ".f32";
+
+	private static final long MAGIC = 0x3233465F58414D4BL;	//"KMAX_F32" little-endian
+	private static final int VERSION = 1;
+	private static final int HEADER = 64;
+	private static final int CHUNK = 1 << 20;
+
+
+	/**
+	 * @return the image of text, from its sidecar if that is valid, otherwise parsed from
+	 * text, in which case a new sidecar is written
+	 */
+	public static KmaxText open(File text) throws IOException{
+		File cache = new File(text.getPath() + SUFFIX);
+		long size = text.length(), time = text.lastModified();
+		ByteBuffer header = header(cache, size, time);
+		byte[] bytes = Files.readAllBytes(text.toPath());
+		long hash = hash(bytes);
+		if(header != null && header.getLong(40) == hash){
+			KmaxText image = read(cache, header);
+			if(image != null)
+				return image;
+		}
+		KmaxText image = KmaxText.parse(bytes, text.getName());
+		if(bytes.length == size)
+			write(text, cache, size, time, hash, image);
+		return image;
+	}
+
+	/**
+	 * @return the header of the sidecar cache if it was made from a text file of size
+	 * and time, or null
+	 */
+	private static ByteBuffer header(File cache, long size, long time){
+		if(!cache.isFile())
+			return null;
+		try{
+			FileChannel channel = FileChannel.open(cache.toPath(), StandardOpenOption.READ);
+			try{
+				if(channel.size() < HEADER)
+					return null;
+				ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+				readFully(channel, header, 0);
+				if(header.getLong(0) != MAGIC || header.getInt(8) != VERSION)
+					return null;
+				if(header.getLong(24) != size || header.getLong(32) != time)
+					return null;
+				return header;
+			}finally{
+				channel.close();
+			}
+		}catch(IOException e){
+			return null;
+		}
+	}
+
+	/**
+	 * @return the image held by the sidecar cache with header, or null if it cannot be read
+	 */
+	private static KmaxText read(File cache, ByteBuffer header){
+		try{
+			FileChannel channel = FileChannel.open(cache.toPath(), StandardOpenOption.READ);
+			try{
+				int width = header.getInt(12), height = header.getInt(16);
+				if(width < 0 || height < 0 || channel.size() != HEADER + 4L*width*height)
+					return null;
+				float[] data = new float[width*height];
+				ByteBuffer in = ByteBuffer.allocateDirect(CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+				for(int k = 0; k < data.length; ){
+					int n = Math.min(CHUNK / 4, data.length - k);
+					in.clear();
+					in.limit(4*n);
+					readFully(channel, in, HEADER + 4L*k);
+					in.asFloatBuffer().get(data, k, n);
+					k += n;
+				}
+				return new KmaxText(width, height, data);
+			}finally{
+				channel.close();
+			}
+		}catch(IOException e){
+			return null;
+		}
+	}
+
+	/**
+	 * Write the sidecar cache of text, holding image parsed from text when it had size,
+	 * time and hash; written to a temporary file first so a sidecar is never seen half
+	 * written.  A sidecar that cannot be written, or whose text file has changed since,
+	 * is skipped.
+	 */
+	private static void write(File text, File cache, long size, long time, long hash, KmaxText image){
+		if(text.length() != size || text.lastModified() != time)
+			return;
+		File temp = new File(cache.getPath() + ".tmp");
+		try{
+			FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+			try{
+				ByteBuffer out = ByteBuffer.allocate(CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+				out.putLong(MAGIC).putInt(VERSION).putInt(image.getWidth()).putInt(image.getHeight()).putInt(0);
+				out.putLong(size).putLong(time).putLong(hash);
+				out.position(HEADER);
+				float[] data = image.getData();
+				for(int k = 0; k < data.length; ){
+					int n = Math.min(out.remaining() / 4, data.length - k);
+					out.asFloatBuffer().put(data, k, n);
+					out.position(out.position() + 4*n);
+					k += n;
+					out.flip();
+					while(out.hasRemaining())
+						channel.write(out);
+					out.clear();
+				}
+				out.flip();
+				while(out.hasRemaining())
+					channel.write(out);
+			}finally{
+				channel.close();
+			}
+			Files.move(temp.toPath(), cache.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}catch(IOException e){
+			temp.delete();
+		}
+	}
+
+	/**
+	 * @return 64 bit hash of bytes, the content of a file
+	 */
+	public static long hash(final byte[] bytes) throws IOException{
+		final int length = bytes.length;
+		int chunks = (length + CHUNK - 1) / CHUNK;
+		final long[] hashes = new long[chunks];
+		KmaxPool.forEach(chunks, new KmaxPool.Task(){
+			public void run(int c){
+				int from = c*CHUNK, to = (int)Math.min((long)(c + 1)*CHUNK, length);
+				ByteBuffer chunk = ByteBuffer.wrap(bytes, from, to - from).slice().order(ByteOrder.LITTLE_ENDIAN);
+				hashes[c] = hash(chunk, from, to - from);
+			}
+		});
+		long h = length;
+		for(int c = 0; c < chunks; c++)
+			h = mix(h ^ hashes[c]);
+		return h;
+	}
+
+	/**
+	 * Fill bytes, from its position to its limit, with the bytes of channel from position
+	 */
+	private static void readFully(FileChannel channel, ByteBuffer bytes, long position) throws IOException{
+		while(bytes.hasRemaining()){
+			int n = channel.read(bytes, position);
+			if(n < 0)
+				throw new EOFException();
+			position += n;
+		}
+		bytes.flip();
+	}
+
+	/**
+	 * @return hash of the length bytes of chunk, which start at offset in the file, eight at a time
+	 */
+	private static long hash(ByteBuffer chunk, long offset, int length){
+		long h = offset;
+		int i = 0;
+		for(; i + 8 <= length; i += 8)
+			h = (h ^ chunk.getLong(i)) * 0x9E3779B97F4A7C15L;
+		for(; i < length; i++)
+			h = (h ^ chunk.get(i)) * 0x9E3779B97F4A7C15L;
+		return mix(h);
+	}
+
+	private static long mix(long h){
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		return h ^ (h >>> 33);
+	}
+}
@@ -0,0 +1,119 @@
+import ij.Prefs;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Worker threads for reading and writing Kmax files, sized from the ImageJ
+ * "Parallel threads" preference (Edit>Options>Memory &amp; Threads).
+ *
+ * The pool belongs to the Kmax plugins alone: work run here reports no progress and
+ * cannot be canceled, whatever else is running, so a file is always read or written
+ * whole.  An exception thrown by a task is thrown again by forEach.
+ */
+public class KmaxPool {
+
+	/**
+	 * A piece of work for one index; it must only write data owned by that index and
+	 * must not call forEach itself
+	 */
+	public interface Task{
+		void run(int index);
+	}
+
+	private static ExecutorService pool;
+	private static int poolThreads = 0;
+
+	/**
+	 * @return the pool, recreated if the thread preference has changed
+	 */
+	private static synchronized ExecutorService pool(){
+		int threads = Math.max(1, Prefs.getThreads());
+		if(pool == null || poolThreads != threads){
+			//the old pool is not shut down, as a caller may still be about to use it;
+			//its workers end on their own once idle
+			ThreadPoolExecutor p = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory(){
+				public Thread newThread(Runnable r){
+					Thread t = new Thread(r, "Kmax I/O");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			p.allowCoreThreadTimeOut(true);
+			pool = p;
+			poolThreads = threads;
+		}
+		return pool;
+	}
+
+	/**
+	 * @return number of worker threads
+	 */
+	public static synchronized int threads(){
+		pool();
+		return poolThreads;
+	}
+
+	/**
+	 * Run task for each index of [0, count), on as many threads as there are workers,
+	 * and wait for all of them
+	 * @throws InterruptedIOException if the calling thread is interrupted while waiting
+	 */
+	public static void forEach(final int count, final Task task) throws InterruptedIOException{
+		ExecutorService p;
+		int workers;
+		synchronized(KmaxPool.class){
+			p = pool();
+			workers = Math.min(poolThreads, count);
+		}
+		if(workers <= 1){
+			for(int i = 0; i < count; i++)
+				task.run(i);
+			return;
+		}
+		final AtomicInteger next = new AtomicInteger();
+		final StageMetrics.Stage stage = StageMetrics.current();	//counts what the workers allocate
+		List<Callable<Object>> workList = new ArrayList<Callable<Object>>();
+		for(int w = 0; w < workers; w++){
+			workList.add(new Callable<Object>(){
+				public Object call(){
+					long bytes = StageMetrics.threadAllocated();
+					try{
+						for(int i = next.getAndIncrement(); i < count; i = next.getAndIncrement())
+							task.run(i);
+					}finally{
+						if(stage != null)
+							stage.addWorkerBytes((bytes < 0) ? -1 : StageMetrics.threadAllocated() - bytes);
+					}
+					return null;
+				}
+			});
+		}
+		try{
+			for(Future<Object> f : p.invokeAll(workList))
+				f.get();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while reading or writing a Kmax file");
+		}catch(ExecutionException e){
+			Throwable cause = e.getCause();
+			if(cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			if(cause instanceof Error)
+				throw (Error)cause;
+			throw new IllegalStateException(cause);
+		}
+	}
+}
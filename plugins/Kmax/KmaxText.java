@@ -0,0 +1,285 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.StringTokenizer;
+
+
+/**
+ * A Kmax text image: a "CHO 2" header line, a "width height" line and the values,
+ * row by row, separated by the delimiter the header line uses (space or tab) and
+ * line breaks.
+ *
+ * read() reads the file in one go and parse() turns the bytes directly into floats,
+ * without a String per value; the file is not memory mapped, so it is free to be
+ * replaced as soon as read() returns.  The body is cut into chunks at delimiters, which are parsed
+ * on the {@link KmaxPool} and then copied into place.  Integers, which is what Kmax
+ * writes, are converted directly; any other number, or a value with spaces around it
+ * in a tab delimited file, goes through Float.parseFloat, so the values are exactly
+ * those of the old line reader.
+ *
+ * write() formats the values as rounded integers straight into byte buffers, block
+ * by block on the pool, which go to the file in order, in the layout Save_Kmax has
+ * always written: ten values a line, each followed by a space.
+ */
+public class KmaxText {
+
+	private static final int CHUNK = 1 << 20;
+	private static final int BLOCK = 1 << 18;
+	private static final int[] POWERS = {1, 10, 100, 1000, 10000, 100000, 1000000, 10000000, 100000000, 1000000000};
+
+	private final int width, height;
+	private final float[] data;
+
+	KmaxText(int width, int height, float[] data){
+		this.width = width;
+		this.height = height;
+		this.data = data;
+	}
+
+	public int getWidth(){
+		return width;
+	}
+
+	public int getHeight(){
+		return height;
+	}
+
+	/**
+	 * @return the values, row by row; missing values are 0 and extra values are ignored
+	 */
+	public float[] getData(){
+		return data;
+	}
+
+	public static KmaxText read(File file) throws IOException{
+		return parse(Files.readAllBytes(file.toPath()), file.getName());
+	}
+
+	/**
+	 * @param bytes the whole content of a Kmax text file
+	 * @param name name of the file, for errors
+	 */
+	public static KmaxText parse(final byte[] bytes, String name) throws IOException{
+		int end = bytes.length;
+
+		//kmax header line "CHO	2", whose fourth character is the delimiter
+		int line = lineEnd(bytes, 0, end);
+		if(line < 4)
+			throw new IOException(name + " is not a Kmax text file");
+		final byte delim = (bytes[3] == ' ') ? (byte)' ' : (byte)'\t';
+		int start = nextLine(bytes, line, end);
+
+		//header line with dimensions
+		line = lineEnd(bytes, start, end);
+		String header = new String(bytes, start, line - start, StandardCharsets.US_ASCII);
+		StringTokenizer st = new StringTokenizer(header, (delim == ' ') ? " " : "\t");
+		int xDim = Integer.parseInt(st.nextToken());
+		int yDim = Integer.parseInt(st.nextToken());
+		start = nextLine(bytes, line, end);
+
+		//chunks of the body, each starting at a separator so no value is cut
+		int chunks = Math.max(1, (end - start) / CHUNK);
+		final int[] from = new int[chunks + 1];
+		from[0] = start;
+		for(int c = 1; c < chunks; c++){
+			int i = Math.max(start + (int)((long)(end - start) * c / chunks), from[c - 1]);
+			while(i < end && !isSeparator(bytes[i], delim))
+				i++;
+			from[c] = i;
+		}
+		from[chunks] = end;
+
+		//each chunk into its own array, then all of them into place
+		final float[][] values = new float[chunks][];
+		final int[] count = new int[chunks + 1];
+		KmaxPool.forEach(chunks, new KmaxPool.Task(){
+			public void run(int c){
+				values[c] = new float[(from[c + 1] - from[c]) / 2 + 1];
+				count[c + 1] = parse(bytes, from[c], from[c + 1], delim, values[c]);
+			}
+		});
+		for(int c = 0; c < chunks; c++)
+			count[c + 1] += count[c];
+
+		float[] data = new float[xDim*yDim];
+		for(int c = 0; c < chunks; c++){
+			int n = Math.min(count[c + 1], data.length) - count[c];
+			if(n > 0)
+				System.arraycopy(values[c], 0, data, count[c], n);
+			values[c] = null;
+		}
+		return new KmaxText(xDim, yDim, data);
+	}
+
+	/**
+	 * Write data, row by row, as a Kmax text image of width by height; each value is
+	 * rounded to an integer
+	 */
+	public static void write(String path, final float[] data, int width, int height) throws IOException{
+		final byte[] newline = System.getProperty("line.separator").getBytes(StandardCharsets.US_ASCII);
+		FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		try{
+			byte[] header = new byte[64];
+			int n = put(header, 0, "CHO 2");
+			n = put(header, n, newline);
+			n = put(header, n, width);
+			header[n++] = ' ';
+			n = put(header, n, height);
+			n = put(header, n, newline);
+			flush(channel, header, n);
+
+			//blocks of whole lines of ten values, formatted on the pool a few at a time and
+			//written in order; a value takes at most 12 bytes with its space
+			final int values = width*height;
+			final int perBlock = 10*(BLOCK / (10*12 + newline.length));
+			int blocks = (values + perBlock - 1) / perBlock;
+			int wave = Math.min(blocks, 2*KmaxPool.threads());
+			final byte[][] buffers = new byte[wave][BLOCK];
+			final int[] length = new int[wave];
+			for(int first = 0; first < blocks; first += wave){
+				final int start = first;
+				int count = Math.min(wave, blocks - first);
+				KmaxPool.forEach(count, new KmaxPool.Task(){
+					public void run(int b){
+						int k = (start + b)*perBlock;
+						length[b] = putValues(buffers[b], 0, data, k, Math.min(k + perBlock, values), newline);
+					}
+				});
+				for(int b = 0; b < count; b++)
+					flush(channel, buffers[b], length[b]);
+			}
+		}finally{
+			channel.close();
+		}
+	}
+
+	/**
+	 * put the values [from, to) of data, each followed by a space, with a line break
+	 * after every tenth value; from is a multiple of ten
+	 */
+	private static int putValues(byte[] buffer, int n, float[] data, int from, int to, byte[] newline){
+		for(int k = from; k < to; k += 10){
+			int end = Math.min(k + 10, to);
+			for(int i = k; i < end; i++){
+				n = put(buffer, n, Math.round(data[i]));
+				buffer[n++] = ' ';
+			}
+			if(end == k + 10)
+				n = put(buffer, n, newline);
+		}
+		return n;
+	}
+
+	private static void flush(FileChannel channel, byte[] buffer, int n) throws IOException{
+		ByteBuffer out = ByteBuffer.wrap(buffer, 0, n);
+		while(out.hasRemaining())
+			channel.write(out);
+	}
+
+	private static int put(byte[] buffer, int n, String s){
+		for(int i = 0; i < s.length(); i++)
+			buffer[n++] = (byte)s.charAt(i);
+		return n;
+	}
+
+	private static int put(byte[] buffer, int n, byte[] bytes){
+		System.arraycopy(bytes, 0, buffer, n, bytes.length);
+		return n + bytes.length;
+	}
+
+	/**
+	 * put the decimal digits of v, as Long.toString writes them
+	 */
+	private static int put(byte[] buffer, int n, int v){
+		if(v == Integer.MIN_VALUE)
+			return put(buffer, n, "-2147483648");
+		if(v < 0){
+			buffer[n++] = '-';
+			v = -v;
+		}
+		int digits = 1;
+		while(digits < 10 && v >= POWERS[digits])
+			digits++;
+		for(int i = n + digits - 1; i >= n; i--){
+			int q = v / 10;
+			buffer[i] = (byte)('0' + v - 10*q);
+			v = q;
+		}
+		return n + digits;
+	}
+
+	private static boolean isSeparator(byte b, byte delim){
+		return b == delim || b == '\n' || b == '\r';
+	}
+
+	/**
+	 * Parse the values of the bytes [from, end) of chunk into values, which has room for
+	 * all of them since each takes at least two bytes with its separator
+	 * @return number of values
+	 */
+	private static int parse(byte[] chunk, int from, int end, byte delim, float[] values){
+		int n = 0;
+		int i = from;
+		while(i < end){
+			byte b = chunk[i];
+			if(isSeparator(b, delim)){
+				i++;
+				continue;
+			}
+			int start = i;
+			boolean negative = (b == '-');
+			if(b == '-' || b == '+')
+				i++;
+			int digits = i;
+			long m = 0;
+			while(i < end && (b = chunk[i]) >= '0' && b <= '9'){
+				m = 10*m + (b - '0');
+				i++;
+			}
+			if(i > digits && i - digits <= 18 && (i == end || isSeparator(chunk[i], delim)))	//an integer
+				values[n++] = negative ? -(float)m : (float)m;
+			else{
+				while(i < end && !isSeparator(chunk[i], delim))
+					i++;
+				values[n++] = value(chunk, start, i);
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * @return the value of the token [from, to), as Float.parseFloat reads it
+	 */
+	private static float value(byte[] chunk, int from, int to){
+		return Float.parseFloat(new String(chunk, from, to - from, StandardCharsets.US_ASCII));
+	}
+
+	/**
+	 * @return index of the line break ending the line starting at from, or end
+	 */
+	private static int lineEnd(byte[] bytes, int from, int end){
+		int i = from;
+		while(i < end && bytes[i] != '\n' && bytes[i] != '\r')
+			i++;
+		return i;
+	}
+
+	/**
+	 * @return start of the line after the line break at i: "\n", "\r" or "\r\n"
+	 */
+	private static int nextLine(byte[] bytes, int i, int end){
+		if(i < end && bytes[i] == '\r')
+			i++;
+		else if(i < end)
+			return i + 1;
+		if(i < end && bytes[i] == '\n')
+			i++;
+		return i;
+	}
+}
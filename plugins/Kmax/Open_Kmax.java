@@ -5,11 +5,8 @@ import ij.io.OpenDialog;
 import ij.plugin.PlugIn;
 import ij.process.FloatProcessor;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
-import java.util.StringTokenizer;
 
 
 public class Open_Kmax implements PlugIn {
@@ -31,7 +28,16 @@ public class Open_Kmax implements PlugIn {
 		else
 			return;
 		
-		float[] data = convertText(new File(path));
+		StageMetrics.clear();
+		StageMetrics.Stage stage = StageMetrics.start("Open Kmax");
+		float[] data = null;
+		try{
+			data = convertText(new File(path));
+		}finally{
+			stage.end((data == null) ? 0 : data.length, "values");
+		}
+		if(data == null)
+			return;
 		
 		int dim = (int)Math.sqrt((double)data.length);
 		FloatProcessor processor = new FloatProcessor(xDim, yDim);
@@ -54,45 +60,15 @@ public class Open_Kmax implements PlugIn {
 	
 	private float[] convertText(File kmaxTxtFile){
 		
-		String temp;
-		String delim = " ";
-		int counter = 0;
-		float[] data = null;
-		StringTokenizer st = null;
-		BufferedReader in = null;
-		
-		try{	
-			in = new BufferedReader(new FileReader(kmaxTxtFile));
-			temp = in.readLine();			//skip kmax header line "CHO	2" 
-			if(temp.charAt(3) == ' ')
-				delim = " ";
-			else
-				delim = "\t";
-			temp = in.readLine();	//read header line with dimensions
-			st = new StringTokenizer(temp, delim);
-			xDim = Integer.parseInt(st.nextToken());
-			yDim = Integer.parseInt(st.nextToken());
-			
-		}catch(IOException e){e.printStackTrace();}
-		
-		st = null;
-		data = new float[xDim*yDim];
-		
 		try{
-			
-			while ((temp = in.readLine()) != null) {
-				
-				st = new StringTokenizer(temp, delim);
-				
-				while(st.hasMoreTokens()){
-					data[counter] = Float.parseFloat(st.nextToken());
-					counter++;
-				}	
-			}
-			in.close();
-			
-		} catch (IOException e) {System.out.println(e);}
-		
-		return data;
+			//a valid binary sidecar is read instead of parsing the text again
+			KmaxText text = KmaxCache.open(kmaxTxtFile);
+			xDim = text.getWidth();
+			yDim = text.getHeight();
+			return text.getData();
+		}catch(IOException e){
+			e.printStackTrace();
+			return null;
+		}
 	}
 }
@@ -6,10 +6,7 @@ import ij.io.SaveDialog;
 import ij.plugin.PlugIn;
 import ij.process.FloatProcessor;
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
 
 
 public class Save_Kmax implements PlugIn {
@@ -35,21 +32,15 @@ public class Save_Kmax implements PlugIn {
 			}    
 			else
 				return;
-			BufferedWriter bwText = new BufferedWriter(new FileWriter(path, false));
-			PrintWriter outText = new PrintWriter(bwText);
-			int counter = 0;
-			outText.println("CHO 2");
-			outText.print("" + width + " ");
-			outText.println("" + height);
-			for(int j = 0; j < height; j++){
-				for(int i = 0; i < width; i++){
-					outText.print("" + Long.toString(Math.round(processor.getPixelValue(i,j))) + " ");
-					counter++;
-					if(counter%10 == 0)
-						outText.println();
-				}
+			StageMetrics.Stage stage = StageMetrics.start("Save Kmax");
+			long values = 0;
+			try{
+				KmaxText.write(path, data, width, height);
+				values = (long)width * height;
+			}finally{
+				stage.end(values, "values");
 			}
-			outText.close();
+			StageMetrics.writeReport(path + ".metrics.json");
 		}catch(IOException ioe){
 			ioe.printStackTrace();
 		}
@@ -0,0 +1,200 @@
+import ij.IJ;
+import ij.Prefs;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Wall time, work done and memory allocated by each stage of a calibration, from
+ * opening the Kmax file to saving the crystal map.  A stage is timed with
+ * <code>StageMetrics.Stage s = StageMetrics.start("Filter"); try{ ... }finally{ s.end(pixels, "pixels"); }</code>
+ * on one thread.  Plugins outside this folder, such as Crystal Map, time their stages
+ * through the Stage_Timings plugin instead, so they do not need this class.
+ *
+ * Finished stages are logged to the ImageJ log unless the LOG_PREF preference is
+ * turned off (see Stage_Timings), and kept until the next Kmax file is opened, so
+ * Save_Kmax can write them as a JSON report next to its output.  Allocated bytes are
+ * those of the thread that ran the stage plus those reported by the pool workers
+ * that took part (see Stage.addWorkerBytes), and are -1 if the JVM cannot count them.
+ */
+public class StageMetrics {
+
+	public static final String LOG_PREF = "kmax.metrics.log";
+	public static final String JSON_PREF = "kmax.metrics.json";
+
+	private static final List<Stage> stages = new ArrayList<Stage>();
+	private static final ThreadLocal<Stage> current = new ThreadLocal<Stage>();
+	private static com.sun.management.ThreadMXBean threads;
+
+	static{
+		try{
+			java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+			if(bean instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean)bean).isThreadAllocatedMemorySupported()){
+				threads = (com.sun.management.ThreadMXBean)bean;
+				threads.setThreadAllocatedMemoryEnabled(true);
+			}
+		}catch(Throwable t){
+			threads = null;
+		}
+	}
+
+	/**
+	 * @return a running stage of the calling thread; nothing is recorded until it ends
+	 */
+	public static Stage start(String name){
+		return new Stage(name);
+	}
+
+	/**
+	 * @return the stage running on the calling thread, or null; work handed to pool
+	 * workers reports its allocation to it
+	 */
+	public static Stage current(){
+		return current.get();
+	}
+
+	/**
+	 * forget the stages recorded so far, at the start of a new calibration
+	 */
+	public static synchronized void clear(){
+		stages.clear();
+	}
+
+	public static synchronized List<Stage> getStages(){
+		return new ArrayList<Stage>(stages);
+	}
+
+	/**
+	 * Write the recorded stages to path as JSON if the JSON_PREF preference is set
+	 */
+	public static void writeReport(String path) throws IOException{
+		if(!Prefs.get(JSON_PREF, false))
+			return;
+		List<Stage> list = getStages();
+		PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(path, false)));
+		out.println("{");
+		out.println("  \"threads\": " + Prefs.getThreads() + ",");
+		out.println("  \"stages\": [");
+		for(int i = 0; i < list.size(); i++){
+			Stage s = list.get(i);
+			out.print("    {\"name\": \"" + escape(s.name) + "\", \"ms\": " + s.getMillis()
+					+ ", \"items\": " + s.items + ", \"unit\": \"" + escape(s.unit)
+					+ "\", \"perSecond\": " + s.getRate() + ", \"allocatedBytes\": " + s.allocated + "}");
+			out.println((i < list.size() - 1) ? "," : "");
+		}
+		out.println("  ]");
+		out.println("}");
+		out.close();
+	}
+
+	/**
+	 * @return bytes allocated so far by the calling thread, or -1 if the JVM cannot count them
+	 */
+	public static long threadAllocated(){
+		if(threads == null)
+			return -1;
+		try{
+			return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}catch(Throwable t){
+			return -1;
+		}
+	}
+
+	private static String escape(String s){
+		StringBuffer sb = new StringBuffer();
+		for(int i = 0; i < s.length(); i++){
+			char c = s.charAt(i);
+			if(c == '"' || c == '\\')
+				sb.append('\\');
+			if(c >= ' ')
+				sb.append(c);
+		}
+		return sb.toString();
+	}
+
+	private static synchronized void record(Stage s){
+		stages.add(s);
+	}
+
+
+	public static class Stage{
+
+		final String name;
+		private final long startTime, startBytes;
+		private final Stage outer;		//running on the same thread when this one started
+		private final AtomicLong workerBytes = new AtomicLong();
+		private volatile boolean uncounted = false;	//a worker could not count its bytes
+		long elapsed, items, allocated;
+		String unit = "";
+
+		Stage(String name){
+			this.name = name;
+			outer = current.get();
+			current.set(this);
+			startBytes = threadAllocated();
+			startTime = System.nanoTime();
+		}
+
+		/**
+		 * Add bytes allocated for this stage by a pool worker, or -1 if the worker
+		 * could not count them
+		 */
+		public void addWorkerBytes(long bytes){
+			if(bytes < 0)
+				uncounted = true;
+			else
+				workerBytes.addAndGet(bytes);
+		}
+
+		/**
+		 * Record the stage, and log it unless LOG_PREF is turned off; called once, on the
+		 * thread that started the stage, in a finally block so a stage that fails or is
+		 * canceled is recorded too
+		 * @param items amount of work done, such as pixels or peaks
+		 * @param unit name of one item, plural
+		 */
+		public void end(long items, String unit){
+			elapsed = System.nanoTime() - startTime;
+			long bytes = threadAllocated();
+			long workers = uncounted ? -1 : workerBytes.get();
+			allocated = (bytes < 0 || startBytes < 0 || workers < 0) ? -1 : Math.max(0, bytes - startBytes) + workers;
+			if(outer != null)	//the outer stage counts this one's workers too
+				outer.addWorkerBytes(workers);
+			if(outer == null)
+				current.remove();
+			else
+				current.set(outer);
+			this.items = items;
+			this.unit = unit;
+			record(this);
+			if(Prefs.get(LOG_PREF, true))
+				IJ.log(toString());
+		}
+
+		public double getMillis(){
+			return elapsed / 1.0e6;
+		}
+
+		/**
+		 * @return items per second
+		 */
+		public double getRate(){
+			return (elapsed > 0) ? items / (elapsed / 1.0e9) : 0;
+		}
+
+		public String toString(){
+			String s = name + ": " + IJ.d2s(getMillis(), 1) + " ms, " + items + " " + unit
+					+ ", " + IJ.d2s(getRate() / 1.0e6, 2) + " M" + unit + "/s";
+			if(allocated >= 0)
+				s += ", " + IJ.d2s(allocated / 1048576.0, 1) + " MB allocated";
+			return s;
+		}
+	}
+}
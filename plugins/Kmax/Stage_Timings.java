@@ -0,0 +1,56 @@
+import ij.IJ;
+import ij.Macro;
+import ij.Prefs;
+import ij.gui.GenericDialog;
+import ij.plugin.PlugIn;
+import ij.util.Tools;
+
+import java.util.List;
+
+
+/**
+ * Turns the logging and JSON report of the per-stage calibration metrics (see
+ * StageMetrics) on or off, and logs the stages recorded since the last Kmax file
+ * was opened.
+ *
+ * Plugins outside this folder time a stage through an instance of this plugin:
+ * <code>PlugIn t = (PlugIn)IJ.runPlugIn("Stage_Timings", "start=[Filter]");</code>
+ * starts it on the calling thread, and
+ * <code>t.run("end items=n unit=[pixels] workers=bytes");</code> ends it on the same
+ * thread, where workers are the bytes allocated for it by pool workers.
+ */
+public class Stage_Timings implements PlugIn {
+
+	private StageMetrics.Stage stage;
+
+	public void run(String arg){
+
+		if(arg != null && arg.length() > 0){
+			String name = Macro.getValue(arg, "start", null);
+			if(name != null && stage == null)
+				stage = StageMetrics.start(name);
+			else if(arg.startsWith("end") && stage != null){
+				stage.addWorkerBytes((long)Tools.parseDouble(Macro.getValue(arg, "workers", "0"), 0));
+				stage.end((long)Tools.parseDouble(Macro.getValue(arg, "items", "0"), 0), Macro.getValue(arg, "unit", ""));
+				stage = null;
+			}
+			return;
+		}
+
+		GenericDialog gd = new GenericDialog("Stage Timings");
+		gd.addCheckbox("Log each stage", Prefs.get(StageMetrics.LOG_PREF, true));
+		gd.addCheckbox("Write JSON report with Save Kmax", Prefs.get(StageMetrics.JSON_PREF, false));
+		gd.addCheckbox("Show recorded stages", true);
+		gd.showDialog();
+		if(gd.wasCanceled())
+			return;
+		Prefs.set(StageMetrics.LOG_PREF, gd.getNextBoolean());
+		Prefs.set(StageMetrics.JSON_PREF, gd.getNextBoolean());
+		if(gd.getNextBoolean()){
+			List<StageMetrics.Stage> stages = StageMetrics.getStages();
+			IJ.log("Stage timings: " + stages.size() + " stages");
+			for(int i = 0; i < stages.size(); i++)
+				IJ.log("   " + stages.get(i));
+		}
+	}
+}